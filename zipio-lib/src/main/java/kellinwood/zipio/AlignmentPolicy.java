@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Chooses the alignment of each uncompressed (i.e., "Stored") entry's data, by matching the entry
+ * name against a list of patterns.  By default native libraries (*.so) are aligned on 4096 byte
+ * pages so that Android can map them straight from the APK, and other stored entries on
+ * ZioEntry.STORED_ALIGNMENT bytes.
+ *
+ * When a ZipOutput has a policy, stored entries are aligned with an alignment extra field (ID 0xD935,
+ * as written by zipalign -p and apksigner) in the local header, which holds the alignment followed
+ * by the padding, rather than with raw zero bytes.  Alignment fields and padding left over from a
+ * previous alignment are removed first, so realigning a file doesn't grow it.
+ */
+public class AlignmentPolicy
+{
+    /** Header ID of the alignment extra field. */
+    public static final short EXTRA_ID = (short)0xD935;
+
+    /** Size of the alignment extra field without padding: ID, length and the alignment itself. */
+    static final int EXTRA_MIN_LENGTH = 6;
+
+    public static final int PAGE_SIZE_4K = 4096;
+    public static final int PAGE_SIZE_16K = 16384;
+
+    static final String NATIVE_LIBRARY_PATTERN = "*.so";
+
+    private static class Rule {
+        final String pattern;
+        final Pattern regex;
+        final int alignment;
+
+        Rule( String pattern, int alignment) {
+            this.pattern = pattern;
+            this.regex = Pattern.compile( toRegex( pattern));
+            this.alignment = alignment;
+        }
+    }
+
+    private final List<Rule> rules = new ArrayList<Rule>();
+    private int nativeLibraryAlignment = PAGE_SIZE_4K;
+
+    /** Align the data of stored entries whose names match the pattern to the given number of bytes,
+     *  a power of two up to 32768.  In the pattern, '*' matches within a directory, '**' matches
+     *  across directories, and '?' matches one character.  A pattern without a '/' is matched
+     *  against the file name in any directory.  Rules are tried in the order they are added, before
+     *  the native library rule.
+     */
+    public void addRule( String pattern, int alignment)
+    {
+        checkAlignment( alignment);
+        rules.add( new Rule( pattern, alignment));
+    }
+
+    /** Set the alignment for native libraries, e.g., PAGE_SIZE_16K for devices with 16 KB pages.  Default PAGE_SIZE_4K. */
+    public void setNativeLibraryAlignment( int alignment)
+    {
+        checkAlignment( alignment);
+        this.nativeLibraryAlignment = alignment;
+    }
+
+    public int getNativeLibraryAlignment() {
+        return nativeLibraryAlignment;
+    }
+
+    /** Returns the alignment for the data of a stored entry with the given name. */
+    public int getAlignment( String name)
+    {
+        String fileName = name.substring( name.lastIndexOf('/') + 1);
+        for (Rule rule : rules) {
+            if (rule.regex.matcher( rule.pattern.indexOf('/') < 0 ? fileName : name).matches()) return rule.alignment;
+        }
+        if (fileName.endsWith( ".so")) return nativeLibraryAlignment;
+        return ZioEntry.STORED_ALIGNMENT;
+    }
+
+    /** Returns the largest alignment any entry may get, e.g., to end a header block on that boundary. */
+    public int getMaxAlignment()
+    {
+        int max = Math.max( ZioEntry.STORED_ALIGNMENT, nativeLibraryAlignment);
+        for (Rule rule : rules) max = Math.max( max, rule.alignment);
+        return max;
+    }
+
+    private static void checkAlignment( int alignment)
+    {
+        if (alignment <= 0 || alignment > 32768 || Integer.bitCount( alignment) != 1) {
+            throw new IllegalArgumentException( "Alignment must be a power of two up to 32768: " + alignment);
+        }
+    }
+
+    static String toRegex( String pattern)
+    {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt( i);
+            if (c == '*' && i + 1 < pattern.length() && pattern.charAt( i + 1) == '*') {
+                regex.append( ".*");
+                i += 1;
+            }
+            else if (c == '*') regex.append( "[^/]*");
+            else if (c == '?') regex.append( "[^/]");
+            else regex.append( Pattern.quote( String.valueOf( c)));
+        }
+        return regex.toString();
+    }
+
+    /** Returns an alignment extra field with the given amount of padding. */
+    static byte[] createExtra( int alignment, int padding)
+    {
+        ByteBuffer extra = ByteBuffer.allocate( EXTRA_MIN_LENGTH + padding);
+        extra.order( ByteOrder.LITTLE_ENDIAN);
+        extra.putShort( EXTRA_ID);
+        extra.putShort( (short)(2 + padding));
+        extra.putShort( (short)alignment);
+        return extra.array();
+    }
+
+    /** Returns the extra data without alignment fields, zero ID fields, and trailing bytes too short
+     *  to be a field, which are all padding from an earlier alignment.
+     */
+    static byte[] stripAlignment( byte[] extraData)
+    {
+        ByteBuffer extra = ByteBuffer.wrap( extraData);
+        extra.order( ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer stripped = ByteBuffer.allocate( extraData.length);
+        while (extra.remaining() >= 4) {
+            int start = extra.position();
+            short id = extra.getShort();
+            int length = extra.getShort() & 0xFFFF;
+            if (length > extra.remaining()) break;
+            extra.position( start + 4 + length);
+            if (id != EXTRA_ID && id != 0) stripped.put( extraData, start, 4 + length);
+        }
+        if (stripped.position() == extraData.length) return extraData;
+        byte[] result = new byte[stripped.position()];
+        System.arraycopy( stripped.array(), 0, result, 0, result.length);
+        return result;
+    }
+}
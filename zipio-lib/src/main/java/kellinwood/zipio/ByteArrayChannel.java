@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+
+/**
+ * A SeekableByteChannel over a growable byte array, for writing a zip file to memory with a
+ * ZipOutput and reading it back with a ZipInput (see getSource()) without any file I/O.  Closing
+ * the channel only stops further reads and writes, the data remains available.
+ */
+public class ByteArrayChannel implements SeekableByteChannel
+{
+    private byte[] data;
+    private int size = 0;
+    private int position = 0;
+    private boolean open = true;
+
+    public ByteArrayChannel() {
+        this( 8192);
+    }
+
+    public ByteArrayChannel( int initialCapacity) {
+        data = new byte[Math.max( initialCapacity, 16)];
+    }
+
+    /** A channel initially containing the given data, e.g., for reading.  The array is not copied. */
+    public ByteArrayChannel( byte[] data) {
+        this.data = data;
+        this.size = data.length;
+    }
+
+    private void checkOpen() throws IOException {
+        if (!open) throw new ClosedChannelException();
+    }
+
+    public synchronized int read( ByteBuffer dst) throws IOException
+    {
+        checkOpen();
+        if (position >= size) return -1;
+        int count = Math.min( dst.remaining(), size - position);
+        dst.put( data, position, count);
+        position += count;
+        return count;
+    }
+
+    public synchronized int write( ByteBuffer src) throws IOException
+    {
+        checkOpen();
+        int count = src.remaining();
+        long end = (long)position + count;
+        if (end > Integer.MAX_VALUE - 8) throw new IOException( "Too much data for a byte array");
+        if (end > data.length) {
+            byte[] larger = new byte[(int)Math.max( end, Math.min( 2L * data.length, Integer.MAX_VALUE - 8))];
+            System.arraycopy( data, 0, larger, 0, size);
+            data = larger;
+        }
+        // Writing past the end leaves zeros in the gap, same as a file.
+        if (position > size) Arrays.fill( data, size, position, (byte)0);
+        src.get( data, position, count);
+        position += count;
+        size = Math.max( size, position);
+        return count;
+    }
+
+    public synchronized long position() throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    public synchronized SeekableByteChannel position( long newPosition) throws IOException {
+        checkOpen();
+        if (newPosition < 0 || newPosition > Integer.MAX_VALUE - 8) throw new IllegalArgumentException( "Invalid position: " + newPosition);
+        position = (int)newPosition;
+        return this;
+    }
+
+    public synchronized long size() throws IOException {
+        checkOpen();
+        return size;
+    }
+
+    public synchronized SeekableByteChannel truncate( long newSize) throws IOException {
+        checkOpen();
+        if (newSize < 0) throw new IllegalArgumentException( "Invalid size: " + newSize);
+        if (newSize < size) size = (int)newSize;
+        if (position > size) position = size;
+        return this;
+    }
+
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    public synchronized void close() {
+        open = false;
+    }
+
+    /** Returns a copy of the data. */
+    public synchronized byte[] toByteArray() {
+        byte[] result = new byte[size];
+        System.arraycopy( data, 0, result, 0, size);
+        return result;
+    }
+
+    /** Returns a source that reads the current data without copying it or moving the channel's
+     *  position, so it may be used while the channel is being written, e.g., to append a spool.
+     */
+    public ZipSource getSource()
+    {
+        return new ZipSource() {
+            public long size() {
+                synchronized (ByteArrayChannel.this) {
+                    return size;
+                }
+            }
+
+            public int read( ByteBuffer dst, long position) {
+                synchronized (ByteArrayChannel.this) {
+                    if (position >= size) return -1;
+                    int count = (int)Math.min( dst.remaining(), size - position);
+                    dst.put( data, (int)position, count);
+                    return count;
+                }
+            }
+
+            public ByteBuffer map( long position, long length) {
+                synchronized (ByteArrayChannel.this) {
+                    if (position < 0 || length < 0 || position + length > size) {
+                        throw new IllegalArgumentException( String.format("Region 0x%08x+%d is outside the data", position, length));
+                    }
+                    // Stays valid when the array is grown, unless the region is overwritten.
+                    return ByteBuffer.wrap( data, (int)position, (int)length).slice().asReadOnlyBuffer();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A compact index of the central directory, for archives with so many entries that a ZioEntry
+ * object per entry would take too much heap.  The values needed to locate and verify each entry
+ * are kept in parallel primitive columns, and names are looked up with an open-addressing hash
+ * table.  The columns and the table are stored in a single little-endian buffer, so that an
+ * IndexCache can save it and map it back in without parsing anything.  The name bytes are not
+ * copied, they are referenced in place in the central directory buffer (which may be
+ * memory-mapped), so that buffer serves as the shared name pool.  Full
+ * ZioEntry views are parsed from the directory on demand by ZipInput.
+ */
+public class CentralDirectoryIndex
+{
+    static final int CENTRAL_HEADER_SIZE = 46;
+
+    final ByteBuffer directory;
+    final long directoryOffset;
+
+    private final int count;
+    private final int slots;
+    private int currentCount = 0; // entries not replaced by a later one with the same name, i.e., used slots
+
+    // The columns, in this order: local header offset, compressed size and size (longs), position of 
+    // each entry's central header relative to the directory, CRC-32 and name hash (ints), the hash
+    // table with the entry index + 1 of each used slot or 0 for an empty one (ints, the number of 
+    // slots is a power of two), and the compression method (shorts).
+    final ByteBuffer columns;
+    private final int sizeColumn;
+    private final int compressedSizeColumn;
+    private final int recordPositionColumn;
+    private final int crc32Column;
+    private final int nameHashColumn;
+    private final int tableColumn;
+    private final int compressionColumn;
+
+    /** Index the directory, which must contain the given number of central headers starting at its position 0. */
+    CentralDirectoryIndex( ByteBuffer directory, long directoryOffset, int count)
+    {
+        this( directory, directoryOffset, count, Integer.highestOneBit( Math.max( count, 1) * 2 - 1) << 1, null);
+
+        ByteBuffer dir = this.directory;
+        int position = 0;
+        int n = 0;
+        for (; n < count; n++) {
+            if (position + CENTRAL_HEADER_SIZE > dir.limit() || dir.getInt( position) != 0x02014b50) {
+                throw new IllegalStateException( String.format("Central directory entry %d not found at pos=0x%08x", n, directoryOffset + position));
+            }
+
+            columns.putInt( recordPositionColumn + 4 * n, position);
+            short compression = dir.getShort( position + 10);
+            int crc32 = dir.getInt( position + 16);
+            long compressedSize = dir.getInt( position + 20) & 0xFFFFFFFFL;
+            long size = dir.getInt( position + 24) & 0xFFFFFFFFL;
+            int nameLength = dir.getShort( position + 28) & 0xFFFF;
+            int extraLength = dir.getShort( position + 30) & 0xFFFF;
+            int commentLength = dir.getShort( position + 32) & 0xFFFF;
+            long localHeaderOffset = dir.getInt( position + 42) & 0xFFFFFFFFL;
+
+            int namePosition = position + CENTRAL_HEADER_SIZE;
+            long[] values = { size, compressedSize, localHeaderOffset };
+            readZip64Extra( values, namePosition + nameLength, extraLength);
+            size = values[0];
+            compressedSize = values[1];
+            localHeaderOffset = values[2];
+
+            // Same as ZioEntry, zero-length entries are treated as stored.
+            if (size == 0) {
+                compressedSize = 0;
+                compression = 0;
+                crc32 = 0;
+            }
+
+            columns.putLong( 8 * n, localHeaderOffset);
+            columns.putLong( compressedSizeColumn + 8 * n, compressedSize);
+            columns.putLong( sizeColumn + 8 * n, size);
+            columns.putInt( crc32Column + 4 * n, crc32);
+            columns.putShort( compressionColumn + 2 * n, compression);
+
+            int hash = hash( dir, namePosition, nameLength);
+            columns.putInt( nameHashColumn + 4 * n, hash);
+            insert( n, hash, namePosition, nameLength);
+
+            position = namePosition + nameLength + extraLength + commentLength;
+        }
+    }
+
+    /** Use previously built columns, e.g., from an IndexCache.  If columns is null, empty ones are allocated. */
+    CentralDirectoryIndex( ByteBuffer directory, long directoryOffset, int count, int slots, ByteBuffer columns)
+    {
+        this.directory = directory.duplicate();
+        this.directory.order( ByteOrder.LITTLE_ENDIAN);
+        this.directoryOffset = directoryOffset;
+        this.count = count;
+        this.slots = slots;
+
+        compressedSizeColumn = 8 * count;
+        sizeColumn = 16 * count;
+        recordPositionColumn = 24 * count;
+        crc32Column = 28 * count;
+        nameHashColumn = 32 * count;
+        tableColumn = 36 * count;
+        compressionColumn = tableColumn + 4 * slots;
+        int length = compressionColumn + 2 * count;
+
+        boolean built = (columns != null);
+        if (columns == null) {
+            columns = ByteBuffer.allocate( length);
+        }
+        else if (columns.remaining() < length) {
+            throw new IllegalStateException( "Index columns are truncated");
+        }
+        this.columns = columns.slice();
+        this.columns.order( ByteOrder.LITTLE_ENDIAN);
+        if (built) {
+            for (int slot = 0; slot < slots; slot++) {
+                if (tableGet( slot) != 0) currentCount++;
+            }
+        }
+    }
+
+    /** Returns the number of hash table slots. */
+    int getSlots() {
+        return slots;
+    }
+
+    /** Returns the number of bytes used by the columns. */
+    int getColumnsLength() {
+        return compressionColumn + 2 * count;
+    }
+
+    private int tableGet( int slot) {
+        return columns.getInt( tableColumn + 4 * slot);
+    }
+
+    private int nameHash( int n) {
+        return columns.getInt( nameHashColumn + 4 * n);
+    }
+
+    private int recordPosition( int n) {
+        return columns.getInt( recordPositionColumn + 4 * n);
+    }
+
+    // Replace saturated values (size, compressed size, offset) with those from the ZIP64 extended
+    // information extra field.
+    private void readZip64Extra( long[] values, int extraPosition, int extraLength)
+    {
+        int end = extraPosition + extraLength;
+        int position = extraPosition;
+        while (position + 4 <= end) {
+            short id = directory.getShort( position);
+            int length = directory.getShort( position + 2) & 0xFFFF;
+            position += 4;
+            if (id == ZioEntry.ZIP64_EXTRA_ID) {
+                int fieldEnd = Math.min( position + length, end);
+                for (int i = 0; i < values.length; i++) {
+                    if (values[i] == ZioEntry.ZIP64_LIMIT && position + 8 <= fieldEnd) {
+                        values[i] = directory.getLong( position);
+                        position += 8;
+                    }
+                }
+                return;
+            }
+            position += length;
+        }
+    }
+
+    private void insert( int n, int hash, int namePosition, int nameLength)
+    {
+        int mask = slots - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int existing = tableGet( slot) - 1;
+            // Like a map, a later duplicate name replaces the earlier entry.
+            if (existing < 0 || (nameHash( existing) == hash && nameEquals( existing, directory, namePosition, nameLength))) {
+                if (existing < 0) currentCount++;
+                columns.putInt( tableColumn + 4 * slot, n + 1);
+                return;
+            }
+        }
+    }
+
+    private static int hash( ByteBuffer bytes, int position, int length)
+    {
+        // FNV-1a
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < length; i++) {
+            hash ^= bytes.get( position + i) & 0xFF;
+            hash *= 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean nameEquals( int n, ByteBuffer bytes, int position, int length)
+    {
+        int namePosition = recordPosition( n) + CENTRAL_HEADER_SIZE;
+        if ((directory.getShort( recordPosition( n) + 28) & 0xFFFF) != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (directory.get( namePosition + i) != bytes.get( position + i)) return false;
+        }
+        return true;
+    }
+
+    /** Returns the index of the entry with the given name, or -1 if there is no such entry. */
+    public int indexOf( String name)
+    {
+        byte[] nameBytes = name.getBytes();
+        ByteBuffer key = ByteBuffer.wrap( nameBytes);
+        int hash = hash( key, 0, nameBytes.length);
+        int mask = slots - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int n = tableGet( slot) - 1;
+            if (n < 0) return -1;
+            if (nameHash( n) == hash && nameEquals( n, key, 0, nameBytes.length)) return n;
+        }
+    }
+
+    /** Returns true if the entry at this index is the one found by looking up its name, i.e., it is
+     *  not replaced by a later entry with the same name.
+     */
+    boolean isCurrent( int n) {
+        int mask = slots - 1;
+        for (int slot = nameHash( n) & mask; ; slot = (slot + 1) & mask) {
+            int found = tableGet( slot) - 1;
+            if (found < 0) return false;
+            if (found == n) return true;
+        }
+    }
+
+    /** Returns the number of entries. */
+    public int size() {
+        return count;
+    }
+
+    /** Returns the number of entries that are current (see isCurrent()), i.e., of distinct names. */
+    int currentSize() {
+        return currentCount;
+    }
+
+    public String getName( int n) {
+        byte[] nameBytes = new byte[directory.getShort( recordPosition( n) + 28) & 0xFFFF];
+        ByteBuffer name = directory.duplicate();
+        name.position( recordPosition( n) + CENTRAL_HEADER_SIZE);
+        name.get( nameBytes);
+        return new String( nameBytes);
+    }
+
+    /** Returns the file offset of the entry's central directory header. */
+    public long getRecordOffset( int n) {
+        return directoryOffset + recordPosition( n);
+    }
+
+    public long getLocalHeaderOffset( int n) {
+        return columns.getLong( 8 * n);
+    }
+
+    public long getCompressedSize( int n) {
+        return columns.getLong( compressedSizeColumn + 8 * n);
+    }
+
+    public long getSize( int n) {
+        return columns.getLong( sizeColumn + 8 * n);
+    }
+
+    public int getCrc32( int n) {
+        return columns.getInt( crc32Column + 4 * n);
+    }
+
+    public short getCompression( int n) {
+        return columns.getShort( compressionColumn + 2 * n);
+    }
+}
@@ -24,13 +24,20 @@ public class CentralEnd
     public int signature = 0x06054b50; // end of central dir signature    4 bytes
     public short numberThisDisk = 0;   // number of this disk             2 bytes     
     public short centralStartDisk = 0; // number of the disk with the start of the central directory  2 bytes
-    public short numCentralEntries;    // total number of entries in the central directory on this disk  2 bytes
-    public short totalCentralEntries;  // total number of entries in the central directory           2 bytes
+    public int numCentralEntries;      // total number of entries in the central directory on this disk  2 bytes (8 in ZIP64)
+    public int totalCentralEntries;    // total number of entries in the central directory           2 bytes (8 in ZIP64)
 
-    public int centralDirectorySize;   // size of the central directory   4 bytes
-    public int centralStartOffset;     // offset of start of central directory with respect to the starting disk number        4 bytes
+    public long centralDirectorySize;  // size of the central directory   4 bytes (8 in ZIP64)
+    public long centralStartOffset;    // offset of start of central directory with respect to the starting disk number        4 bytes (8 in ZIP64)
     public String fileComment;         // .ZIP file comment       (variable size)
 
+    static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    // Values at or above these limits are stored in the ZIP64 end of central directory record.
+    static final int ZIP64_ENTRY_LIMIT = 0xFFFF;
+    static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
     private static Logger log = Logger.getLogger(CentralEnd.class);
 
     public static CentralEnd read(ZipInput input) throws IOException
@@ -56,44 +63,110 @@ public class CentralEnd
 
         boolean debug = log.isDebugEnabled();
 
+        long posEOCDR = input.getFilePointer() - 4;
+
         numberThisDisk = input.readShort();
         if (debug) log.debug( String.format("This disk number: 0x%04x", numberThisDisk));
 
         centralStartDisk = input.readShort();
         if (debug) log.debug( String.format("Central dir start disk number: 0x%04x", centralStartDisk));
 
-        numCentralEntries = input.readShort();
+        numCentralEntries = input.readShort() & 0xFFFF;
         if (debug) log.debug( String.format("Central entries on this disk: 0x%04x", numCentralEntries));
 
-        totalCentralEntries = input.readShort();
+        totalCentralEntries = input.readShort() & 0xFFFF;
         if (debug) log.debug( String.format("Total number of central entries: 0x%04x", totalCentralEntries));
 
-        centralDirectorySize = input.readInt();
+        centralDirectorySize = input.readInt() & 0xFFFFFFFFL;
         if (debug) log.debug( String.format("Central directory size: 0x%08x", centralDirectorySize));
 
-        centralStartOffset = input.readInt();
+        centralStartOffset = input.readInt() & 0xFFFFFFFFL;
         if (debug) log.debug( String.format("Central directory offset: 0x%08x", centralStartOffset));
 
-        short zipFileCommentLen = input.readShort();
+        int zipFileCommentLen = input.readShort() & 0xFFFF;
         fileComment = input.readString(zipFileCommentLen);
         if (debug) log.debug( ".ZIP file comment: " + fileComment);
 
+        if (totalCentralEntries == ZIP64_ENTRY_LIMIT || centralDirectorySize == ZIP64_LIMIT || centralStartOffset == ZIP64_LIMIT) {
+            readZip64( input, posEOCDR);
+        }
+    }
+
+    /** Read the ZIP64 end of central directory record, if its locator precedes the EOCDR. */
+    private void readZip64( ZipInput input, long posEOCDR) throws IOException
+    {
+        boolean debug = log.isDebugEnabled();
+
+        if (posEOCDR < 20) return;
+        input.seek( posEOCDR - 20);
+        if (input.readInt() != ZIP64_LOCATOR_SIGNATURE) return;
+
+        input.readInt(); // number of the disk with the start of the ZIP64 end of central directory
+        long zip64EndOffset = input.readLong();
+        if (debug) log.debug( String.format("ZIP64 end of central directory offset: 0x%016x", zip64EndOffset));
 
+        input.seek( zip64EndOffset);
+        if (input.readInt() != ZIP64_END_SIGNATURE) {
+            throw new IllegalStateException( String.format("ZIP64 end of central directory not found at pos=0x%016x", zip64EndOffset));
+        }
+
+        input.readLong();  // size of the ZIP64 end of central directory record
+        input.readShort(); // version made by
+        input.readShort(); // version needed to extract
+
+        numberThisDisk = (short)input.readInt();
+        centralStartDisk = (short)input.readInt();
+
+        numCentralEntries = (int)input.readLong();
+        if (debug) log.debug( String.format("ZIP64 central entries on this disk: %d", numCentralEntries));
+
+        totalCentralEntries = (int)input.readLong();
+        if (debug) log.debug( String.format("ZIP64 total number of central entries: %d", totalCentralEntries));
+
+        centralDirectorySize = input.readLong();
+        if (debug) log.debug( String.format("ZIP64 central directory size: 0x%016x", centralDirectorySize));
+
+        centralStartOffset = input.readLong();
+        if (debug) log.debug( String.format("ZIP64 central directory offset: 0x%016x", centralStartOffset));
     }
 
+    public boolean isZip64() {
+        return totalCentralEntries >= ZIP64_ENTRY_LIMIT || centralDirectorySize >= ZIP64_LIMIT || centralStartOffset >= ZIP64_LIMIT;
+    }
 
     public void write( ZipOutput output) throws IOException
     {
 
         boolean debug = log.isDebugEnabled();
 
+        if (isZip64()) {
+            long zip64EndOffset = output.getFilePointer();
+            if (debug) log.debug( String.format("Writing ZIP64 end of central directory at 0x%016x", zip64EndOffset));
+
+            output.writeInt( ZIP64_END_SIGNATURE);
+            output.writeLong( 44);                    // size of the remaining record
+            output.writeShort( (short)45);            // version made by
+            output.writeShort( (short)45);            // version needed to extract
+            output.writeInt( numberThisDisk);
+            output.writeInt( centralStartDisk);
+            output.writeLong( numCentralEntries);
+            output.writeLong( totalCentralEntries);
+            output.writeLong( centralDirectorySize);
+            output.writeLong( centralStartOffset);
+
+            output.writeInt( ZIP64_LOCATOR_SIGNATURE);
+            output.writeInt( 0);                      // disk with the ZIP64 end of central directory
+            output.writeLong( zip64EndOffset);
+            output.writeInt( 1);                      // total number of disks
+        }
+
         output.writeInt( signature);
         output.writeShort( numberThisDisk);
         output.writeShort( centralStartDisk);
-        output.writeShort( numCentralEntries);
-        output.writeShort( totalCentralEntries);
-        output.writeInt( centralDirectorySize );
-        output.writeInt( centralStartOffset );
+        output.writeShort( (short)Math.min( numCentralEntries, ZIP64_ENTRY_LIMIT));
+        output.writeShort( (short)Math.min( totalCentralEntries, ZIP64_ENTRY_LIMIT));
+        output.writeInt( (int)Math.min( centralDirectorySize, ZIP64_LIMIT));
+        output.writeInt( (int)Math.min( centralStartOffset, ZIP64_LIMIT));
         output.writeShort( (short)fileComment.length());
         output.writeString( fileComment);
 
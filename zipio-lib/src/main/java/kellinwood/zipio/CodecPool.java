@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Per-thread pools of raw (nowrap) Inflaters and Deflaters and of I/O buffers, so that reading and
+ * writing many entries doesn't create a new zlib stream per entry and leave its native memory to
+ * be released at finalization.  Each get method must be paired with a release, after which the
+ * object must not be used again.  An object may be released on a different thread than the one
+ * that got it, it then joins the pool of the releasing thread.
+ *
+ * Each thread keeps at most MAX_POOLED objects of each kind, any more are ended (codecs) or left
+ * to the garbage collector (buffers) when released.  Call clear() before a long-lived thread stops
+ * using zipio to end the codecs it holds.
+ */
+public class CodecPool
+{
+    /** Size of the buffers returned by getBuffer(). */
+    public static final int BUFFER_SIZE = 16384;
+
+    /** Most objects of each kind kept per thread. */
+    public static final int MAX_POOLED = 4;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong liveCodecs = new AtomicLong();
+
+    private static class Pools
+    {
+        final ArrayDeque<Inflater> inflaters = new ArrayDeque<Inflater>();
+        final ArrayDeque<Deflater> deflaters = new ArrayDeque<Deflater>();
+        final ArrayDeque<byte[]> buffers = new ArrayDeque<byte[]>();
+    }
+
+    private static final ThreadLocal<Pools> pools = new ThreadLocal<Pools>() {
+        protected Pools initialValue() {
+            return new Pools();
+        }
+    };
+
+    private CodecPool() {}
+
+    /** Returns a raw Inflater, ready for new input. */
+    public static Inflater getInflater()
+    {
+        Inflater inflater = pools.get().inflaters.pollLast();
+        if (inflater != null) {
+            hits.incrementAndGet();
+            return inflater;
+        }
+        misses.incrementAndGet();
+        liveCodecs.incrementAndGet();
+        return new Inflater( true);
+    }
+
+    public static void release( Inflater inflater)
+    {
+        ArrayDeque<Inflater> pool = pools.get().inflaters;
+        if (pool.size() < MAX_POOLED) {
+            inflater.reset();
+            pool.addLast( inflater);
+        }
+        else {
+            inflater.end();
+            liveCodecs.decrementAndGet();
+        }
+    }
+
+    /** Returns a raw Deflater with the given level and the default strategy, ready for new input. */
+    public static Deflater getDeflater( int level)
+    {
+        Deflater deflater = pools.get().deflaters.pollLast();
+        if (deflater != null) {
+            hits.incrementAndGet();
+            deflater.setLevel( level);
+            return deflater;
+        }
+        misses.incrementAndGet();
+        liveCodecs.incrementAndGet();
+        return new Deflater( level, true);
+    }
+
+    public static void release( Deflater deflater)
+    {
+        ArrayDeque<Deflater> pool = pools.get().deflaters;
+        if (pool.size() < MAX_POOLED) {
+            deflater.reset();
+            deflater.setStrategy( Deflater.DEFAULT_STRATEGY);
+            pool.addLast( deflater);
+        }
+        else {
+            deflater.end();
+            liveCodecs.decrementAndGet();
+        }
+    }
+
+    /** Returns a buffer of BUFFER_SIZE bytes.  Its content is undefined. */
+    public static byte[] getBuffer()
+    {
+        byte[] buffer = pools.get().buffers.pollLast();
+        if (buffer != null) {
+            hits.incrementAndGet();
+            return buffer;
+        }
+        misses.incrementAndGet();
+        return new byte[BUFFER_SIZE];
+    }
+
+    public static void release( byte[] buffer)
+    {
+        ArrayDeque<byte[]> pool = pools.get().buffers;
+        if (buffer.length == BUFFER_SIZE && pool.size() < MAX_POOLED) pool.addLast( buffer);
+    }
+
+    /** End the codecs and drop the buffers pooled by the current thread. */
+    public static void clear()
+    {
+        Pools threadPools = pools.get();
+        for (Inflater inflater : threadPools.inflaters) {
+            inflater.end();
+            liveCodecs.decrementAndGet();
+        }
+        for (Deflater deflater : threadPools.deflaters) {
+            deflater.end();
+            liveCodecs.decrementAndGet();
+        }
+        pools.remove();
+    }
+
+    /** Returns an InflaterInputStream using a pooled Inflater, which is released when the stream is closed. */
+    public static InputStream inflate( InputStream in)
+    {
+        return new InflaterInputStream( in, getInflater()) {
+            private boolean released = false;
+
+            public void close() throws IOException {
+                if (!released) {
+                    released = true;
+                    release( inf);
+                }
+                super.close();
+            }
+        };
+    }
+
+    /** Returns the number of get calls served from a pool. */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /** Returns the number of get calls that had to create a new object. */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns the number of codecs created by the pool that have not been ended. */
+    public static long getLiveCodecs() {
+        return liveCodecs.get();
+    }
+
+    public static String getStatistics() {
+        return String.format("%d hits, %d misses, %d live codecs", getHits(), getMisses(), getLiveCodecs());
+    }
+}
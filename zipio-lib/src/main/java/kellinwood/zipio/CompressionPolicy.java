@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import kellinwood.logging.Logger;
+
+/**
+ * Chooses how each new entry is compressed: stored, deflated at a fast level, or deflated at the
+ * best level.  The decision is made from the entry's name (already compressed media and archives,
+ * native libraries and resources.arsc are stored), from the entropy of the first bytes written
+ * to the entry, and from the time spent compressing so far compared to a budget.  The policy also
+ * keeps totals of the bytes saved and the time spent, so the tradeoff can be reported.
+ *
+ * A policy may be shared by entries written from several threads.
+ */
+public class CompressionPolicy
+{
+    static Logger log = Logger.getLogger(CompressionPolicy.class);
+
+    /** Level returned by getLevel() for entries that should not be compressed. */
+    public static final int STORED = 0;
+
+    /** Number of leading bytes used to estimate the entropy of an entry. */
+    public static final int SAMPLE_SIZE = 4096;
+
+    static final String[] DEFAULT_STORED_EXTENSIONS = {
+        ".png", ".jpg", ".jpeg", ".gif", ".webp", ".mp3", ".ogg", ".m4a", ".aac", ".mp4", ".3gp", ".webm",
+        ".zip", ".jar", ".apk", ".gz", ".bz2", ".xz", ".7z", ".so"
+    };
+
+    static final String[] DEFAULT_STORED_NAMES = { "resources.arsc" };
+
+    private final Set<String> storedExtensions = new HashSet<String>();
+    private final Set<String> storedNames = new HashSet<String>();
+
+    private int fastLevel = Deflater.BEST_SPEED;
+    private int bestLevel = Deflater.BEST_COMPRESSION;
+    private double storedEntropy = 7.5;
+    private double fastEntropy = 7.0;
+    private long nanosPerMegabyte = 0;
+
+    // Totals, guarded by this.
+    private int storedEntries = 0;
+    private int fastEntries = 0;
+    private int bestEntries = 0;
+    private long bytesIn = 0;
+    private long bytesOut = 0;
+    private long compressionNanos = 0;
+
+    public CompressionPolicy()
+    {
+        for (String extension : DEFAULT_STORED_EXTENSIONS) storedExtensions.add( extension);
+        for (String name : DEFAULT_STORED_NAMES) storedNames.add( name);
+    }
+
+    /** Store entries whose names end with the given extension, e.g., ".dat". */
+    public void addStoredExtension( String extension) {
+        storedExtensions.add( extension.toLowerCase( Locale.US));
+    }
+
+    /** Compress entries with this extension even though it is stored by default. */
+    public void removeStoredExtension( String extension) {
+        storedExtensions.remove( extension.toLowerCase( Locale.US));
+    }
+
+    /** Store entries with this file name, in any directory. */
+    public void addStoredName( String name) {
+        storedNames.add( name);
+    }
+
+    public void setFastLevel( int fastLevel) {
+        this.fastLevel = fastLevel;
+    }
+
+    public void setBestLevel( int bestLevel) {
+        this.bestLevel = bestLevel;
+    }
+
+    /** Entries whose sample has at least this many bits of entropy per byte are stored.  Default 7.5. */
+    public void setStoredEntropy( double storedEntropy) {
+        this.storedEntropy = storedEntropy;
+    }
+
+    /** Entries whose sample has at least this many bits of entropy per byte use the fast level.  Default 7.0. */
+    public void setFastEntropy( double fastEntropy) {
+        this.fastEntropy = fastEntropy;
+    }
+
+    /** Use the fast level for all compressed entries once the average time spent compressing
+     *  exceeds this many nanoseconds per megabyte of input.  Use 0 (the default) for no budget.
+     */
+    public void setTimeBudget( long nanosPerMegabyte) {
+        this.nanosPerMegabyte = nanosPerMegabyte;
+    }
+
+    /** Returns the deflate level for the entry, or STORED.  The sample contains the first bytes
+     *  of the entry's data, at most SAMPLE_SIZE of them.
+     */
+    public int getLevel( String name, byte[] sample, int sampleLength)
+    {
+        String lowerName = name.toLowerCase( Locale.US);
+        int dot = lowerName.lastIndexOf('.');
+        if (dot >= 0 && storedExtensions.contains( lowerName.substring( dot))) return STORED;
+
+        String fileName = name.substring( name.lastIndexOf('/') + 1);
+        if (storedNames.contains( fileName)) return STORED;
+
+        double entropy = entropy( sample, sampleLength);
+        if (log.isDebugEnabled()) log.debug(String.format("%s: sample entropy %.2f bits/byte", name, entropy));
+        if (entropy >= storedEntropy) return STORED;
+        if (entropy >= fastEntropy || overBudget()) return fastLevel;
+        return bestLevel;
+    }
+
+    private synchronized boolean overBudget()
+    {
+        if (nanosPerMegabyte <= 0 || bytesIn == 0) return false;
+        return compressionNanos > nanosPerMegabyte * (double)bytesIn / (1024 * 1024);
+    }
+
+    /** Returns the Shannon entropy, in bits per byte, of the data. */
+    static double entropy( byte[] data, int length)
+    {
+        if (length == 0) return 0;
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) counts[data[i] & 0xFF]++;
+        double entropy = 0;
+        for (int count : counts) {
+            if (count == 0) continue;
+            double p = (double)count / length;
+            entropy -= p * Math.log( p);
+        }
+        return entropy / Math.log( 2);
+    }
+
+    /** Add an entry written with the given level to the totals. */
+    public synchronized void record( int level, long size, long compressedSize, long nanos)
+    {
+        if (level == STORED) storedEntries += 1;
+        else if (level == bestLevel) bestEntries += 1;
+        else fastEntries += 1;
+        bytesIn += size;
+        bytesOut += compressedSize;
+        compressionNanos += nanos;
+    }
+
+    /** Returns the total difference between the uncompressed and compressed sizes of the entries. */
+    public synchronized long getBytesSaved() {
+        return bytesIn - bytesOut;
+    }
+
+    /** Returns the total time, in nanoseconds, spent compressing entries. */
+    public synchronized long getCompressionNanos() {
+        return compressionNanos;
+    }
+
+    public synchronized String toString() {
+        return String.format("%d stored, %d fast, %d best; %d bytes saved of %d in %d ms",
+                             storedEntries, fastEntries, bestEntries, bytesIn - bytesOut, bytesIn, compressionNanos / 1000000);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Digests the uncompressed content of entries read from a zip file without going through
+ * InputStreams.  The compressed data is read straight into the kernel's input buffer, or taken from
+ * memory when the input is a byte array or buffer, or the entry is large enough to be mapped (see
+ * ZipInput.MAP_THRESHOLD).  It is inflated into the kernel's output buffer by a pooled Inflater,
+ * and each block is given to the MessageDigest whole.  Stored entries in memory are given to the
+ * MessageDigest as a single ByteBuffer, unless verifying.  Apart from mapping large entries, nothing is allocated per
+ * entry.
+ *
+ * With verification enabled, the CRC-32 and size of the content are computed from the same blocks
+ * and checked against the entry's central directory record, so a corrupt input is detected without
+ * reading it again.
+ *
+ * A kernel keeps its buffers between entries, so it may only be used by one thread at a time.
+ */
+public class DigestKernel
+{
+    public static final int BUFFER_SIZE = 65536;
+
+    private static final byte[] DUMMY_BYTE = new byte[1];
+
+    private final MessageDigest md;
+    private final byte[] inBuffer = new byte[BUFFER_SIZE];
+    private final byte[] outBuffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer inWrapper = ByteBuffer.wrap( inBuffer);
+
+    private boolean verify = false;
+    private final CRC32 crc = new CRC32();
+    private long size;
+
+    public DigestKernel( MessageDigest md) {
+        this.md = md;
+    }
+
+    public MessageDigest getMessageDigest() {
+        return md;
+    }
+
+    /** Check the CRC-32 and size of the content of entries read from a zip file while digesting
+     *  them, see verify().  Default false.
+     */
+    public void setVerify( boolean verify) {
+        this.verify = verify;
+    }
+
+    public boolean isVerify() {
+        return verify;
+    }
+
+    /** Throws a ZipException if the CRC-32 or size of the entry's content, as computed while reading
+     *  it, is not what the entry's header says, i.e., the data is corrupt.
+     */
+    public static void verify( ZioEntry entry, int crc32, long size) throws ZipException
+    {
+        if (crc32 != entry.getCrc32() || size != entry.getSize()) {
+            throw new ZipException( String.format("Corrupt data in %s: CRC 0x%08x and size %d, expected CRC 0x%08x and size %d",
+                                                  entry.getName(), crc32, size, entry.getCrc32(), entry.getSize()));
+        }
+    }
+
+    /** Returns the digest of the entry's uncompressed content. */
+    public byte[] digest( ZioEntry entry) throws IOException
+    {
+        ZipInput input = entry.getCopiedInput();
+        if (input == null) {
+            // A new or modified entry, its data is not in a zip file.
+            InputStream data = entry.getInputStream();
+            int num;
+            while ((num = data.read( outBuffer)) > 0) md.update( outBuffer, 0, num);
+            data.close();
+            return md.digest();
+        }
+
+        if (entry.getDataPosition() < 0) entry.readLocalHeader();
+        crc.reset();
+        size = 0;
+        long position = entry.getDataPosition();
+        long length = entry.getCompressedSize();
+
+        ByteBuffer region = null;
+        if (length <= Integer.MAX_VALUE && (input.source.getFileChannel() == null || length >= ZipInput.MAP_THRESHOLD)) {
+            region = input.source.map( position, length);
+        }
+        if (region != null) return digest( entry, region);
+
+        if (entry.getCompression() == 0) {
+            for (long numRead = 0; numRead < length; ) {
+                int count = fill( input, position + numRead, length - numRead, entry);
+                update( inBuffer, 0, count);
+                numRead += count;
+            }
+            return finish( entry);
+        }
+
+        Inflater inflater = CodecPool.getInflater();
+        try {
+            long numRead = 0;
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (numRead == length) supplyDummyByte( inflater, entry);
+                    else {
+                        int count = fill( input, position + numRead, length - numRead, entry);
+                        inflater.setInput( inBuffer, 0, count);
+                        numRead += count;
+                    }
+                }
+                inflate( inflater, entry);
+            }
+        }
+        finally {
+            CodecPool.release( inflater);
+        }
+        return finish( entry);
+    }
+
+    /** Returns the digest of the entry's uncompressed content, given its (possibly compressed) data,
+     *  e.g., read ahead by ReadAhead.  The buffer's position is moved to its limit.
+     */
+    public byte[] digest( ZioEntry entry, ByteBuffer rawData) throws IOException
+    {
+        crc.reset();
+        size = 0;
+        if (entry.getCompression() == 0) {
+            if (!verify) md.update( rawData);
+            else if (rawData.hasArray()) {
+                update( rawData.array(), rawData.arrayOffset() + rawData.position(), rawData.remaining());
+                rawData.position( rawData.limit());
+            }
+            else {
+                // CRC32.update( ByteBuffer) is not available on older Android versions.
+                while (rawData.hasRemaining()) {
+                    int count = Math.min( rawData.remaining(), outBuffer.length);
+                    rawData.get( outBuffer, 0, count);
+                    update( outBuffer, 0, count);
+                }
+            }
+            return finish( entry);
+        }
+
+        Inflater inflater = CodecPool.getInflater();
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (!rawData.hasRemaining()) supplyDummyByte( inflater, entry);
+                    else {
+                        int count = Math.min( rawData.remaining(), inBuffer.length);
+                        rawData.get( inBuffer, 0, count);
+                        inflater.setInput( inBuffer, 0, count);
+                    }
+                }
+                inflate( inflater, entry);
+            }
+        }
+        finally {
+            CodecPool.release( inflater);
+        }
+        return finish( entry);
+    }
+
+    private void update( byte[] content, int offset, int length)
+    {
+        md.update( content, offset, length);
+        if (verify) {
+            crc.update( content, offset, length);
+            size += length;
+        }
+    }
+
+    // Returns the digest, after checking the content if verifying.
+    private byte[] finish( ZioEntry entry) throws ZipException
+    {
+        if (verify) {
+            try {
+                verify( entry, (int)crc.getValue(), size);
+            }
+            catch (ZipException x) {
+                md.reset();
+                throw x;
+            }
+        }
+        return md.digest();
+    }
+
+    // Read the next block of the entry's data into the input buffer, returning its length.
+    private int fill( ZipInput input, long position, long remaining, ZioEntry entry) throws IOException
+    {
+        inWrapper.clear();
+        inWrapper.limit( (int)Math.min( remaining, inBuffer.length));
+        int count = input.source.read( inWrapper, position);
+        if (count <= 0) throw new EOFException( String.format("EOF reached at pos=0x%08x reading %s", position, entry.getName()));
+        return count;
+    }
+
+    // The nowrap Inflater needs an extra "dummy" byte after the data to finish, see ZioEntry.getInputStream().
+    private void supplyDummyByte( Inflater inflater, ZioEntry entry) throws IOException
+    {
+        if (inflater.getBytesRead() > entry.getCompressedSize()) {
+            throw new EOFException( "Unexpected end of compressed data in " + entry.getName());
+        }
+        inflater.setInput( DUMMY_BYTE, 0, 1);
+    }
+
+    private void inflate( Inflater inflater, ZioEntry entry) throws IOException
+    {
+        try {
+            int count = inflater.inflate( outBuffer);
+            if (count > 0) update( outBuffer, 0, count);
+            else if (inflater.needsDictionary()) throw new ZipException( "Preset dictionary required by " + entry.getName());
+        }
+        catch (DataFormatException x) {
+            throw new ZipException( entry.getName() + ": " + x.getMessage());
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A tree of the entry names, split at the "/" characters, for browsing a zip file by directory.
+ * Listing the children of a directory takes time proportional to the depth of the path rather than
+ * the number of entries.  Each directory also keeps the number of entries below it and their total
+ * sizes.
+ *
+ * Paths follow the conventions of ZipInput.list(): they must end with a "/" character, and "/" is
+ * the root.  Child directory names end with "/".
+ */
+public class DirectoryTree
+{
+    static class Node
+    {
+        // Sorted, so that listings come out in the same order as before.
+        Map<String,Node> children = null;
+        String entryName = null;  // if an entry has exactly this name
+        int entryCount = 0;
+        long size = 0;
+        long compressedSize = 0;
+
+        Node child( String name) {
+            if (children == null) children = new TreeMap<String,Node>();
+            Node child = children.get( name);
+            if (child == null) {
+                child = new Node();
+                children.put( name, child);
+            }
+            return child;
+        }
+    }
+
+    private final Node root = new Node();
+
+    /** Add an entry, and its sizes to the totals of the directories containing it. */
+    public void add( String name, long size, long compressedSize)
+    {
+        Node node = root;
+        addTotals( node, size, compressedSize);
+        int start = 0;
+        while (start < name.length()) {
+            int slash = name.indexOf( '/', start);
+            if (slash == start) {
+                // Skip empty path components.
+                start += 1;
+                continue;
+            }
+            String component = (slash < 0) ? name.substring( start) : name.substring( start, slash + 1);
+            node = node.child( component);
+            addTotals( node, size, compressedSize);
+            if (slash < 0) break;
+            start = slash + 1;
+        }
+        node.entryName = name;
+    }
+
+    private static void addTotals( Node node, long size, long compressedSize)
+    {
+        node.entryCount += 1;
+        node.size += size;
+        node.compressedSize += compressedSize;
+    }
+
+    // Returns the node of the directory, or null if there are no entries in it.
+    private Node find( String path)
+    {
+        if (!path.endsWith("/")) throw new IllegalArgumentException("Invalid path -- does not end with '/'");
+
+        Node node = root;
+        int start = 0;
+        while (node != null && start < path.length()) {
+            int slash = path.indexOf( '/', start);
+            if (slash > start) {
+                node = (node.children == null) ? null : node.children.get( path.substring( start, slash + 1));
+            }
+            start = slash + 1;
+        }
+        return node;
+    }
+
+    /** Returns the names of the immediate children of the directory, in sorted order. */
+    public Collection<String> list( String path)
+    {
+        Node node = find( path);
+        if (node == null || node.children == null) return new TreeSet<String>();
+        return new TreeSet<String>( node.children.keySet());
+    }
+
+    /** Returns the names of all the entries in and below the directory, in sorted order. */
+    public List<String> getEntryNames( String path)
+    {
+        Node node = find( path);
+        if (node == null) return Collections.emptyList();
+        List<String> names = new ArrayList<String>( node.entryCount);
+        collect( node, names);
+        return names;
+    }
+
+    private static void collect( Node node, List<String> names)
+    {
+        if (node.entryName != null) names.add( node.entryName);
+        if (node.children == null) return;
+        for (Node child : node.children.values()) collect( child, names);
+    }
+
+    /** Returns the number of entries in and below the directory. */
+    public int getEntryCount( String path) {
+        Node node = find( path);
+        return (node == null) ? 0 : node.entryCount;
+    }
+
+    /** Returns the total uncompressed size of the entries in and below the directory. */
+    public long getTotalSize( String path) {
+        Node node = find( path);
+        return (node == null) ? 0 : node.size;
+    }
+
+    /** Returns the total compressed size of the entries in and below the directory. */
+    public long getTotalCompressedSize( String path) {
+        Node node = find( path);
+        return (node == null) ? 0 : node.compressedSize;
+    }
+}
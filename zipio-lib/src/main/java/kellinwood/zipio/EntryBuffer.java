@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kellinwood.logging.Logger;
+
+/**
+ * Holds the (possibly compressed) data of a new entry in CHUNK_SIZE chunks taken from a shared
+ * pool.  Once more than the spill threshold has been written, the data is moved to a temporary
+ * file and the chunks go back to the pool, so a large generated entry doesn't have to fit on the
+ * heap.  The data is never copied into a single array, it is written to the ZipOutput straight
+ * from the chunks or the file.
+ */
+public class EntryBuffer extends OutputStream
+{
+    static Logger log = Logger.getLogger(EntryBuffer.class);
+
+    public static final int CHUNK_SIZE = 65536;
+
+    // The first chunk starts out this small and grows to CHUNK_SIZE, so that small entries don't
+    // each hold on to a full chunk.
+    static final int INITIAL_SIZE = 1024;
+
+    // At most this many free chunks are kept for reuse.
+    static final int MAX_POOLED_CHUNKS = 64;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final AtomicInteger pooledChunks = new AtomicInteger();
+
+    private static volatile boolean direct = false;
+    public static final long DEFAULT_SPILL_THRESHOLD = 8L * 1024 * 1024;
+
+    private static volatile long spillThreshold = DEFAULT_SPILL_THRESHOLD;
+    private static volatile File spillDirectory = null;
+
+    // Chunks in write mode, i.e., each chunk's data is from 0 to its position.  Every chunk but the
+    // last one is full.  After spilling, only the last chunk is kept, as a write buffer for the file.
+    private List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    private long size = 0;
+
+    private File spillFile = null;
+    private RandomAccessFile spillOut = null;
+    private FileChannel spillChannel = null;
+
+    /** Use direct (off-heap) chunks instead of byte arrays. */
+    public static void setDirect( boolean useDirect) {
+        direct = useDirect;
+    }
+
+    /** Spill the data of an entry to a temporary file once it is larger than this many bytes. */
+    public static void setSpillThreshold( long threshold) {
+        spillThreshold = threshold;
+    }
+
+    /** Directory for the temporary files.  Defaults to java.io.tmpdir when null. */
+    public static void setSpillDirectory( File directory) {
+        spillDirectory = directory;
+    }
+
+    private static ByteBuffer takeChunk()
+    {
+        boolean useDirect = direct;
+        ByteBuffer chunk;
+        while ((chunk = pool.poll()) != null) {
+            pooledChunks.decrementAndGet();
+            if (chunk.isDirect() == useDirect) {
+                chunk.clear();
+                return chunk;
+            }
+        }
+        return useDirect ? ByteBuffer.allocateDirect( CHUNK_SIZE) : ByteBuffer.allocate( CHUNK_SIZE);
+    }
+
+    private static void returnChunk( ByteBuffer chunk)
+    {
+        if (chunk.capacity() != CHUNK_SIZE) return;
+        if (pooledChunks.incrementAndGet() <= MAX_POOLED_CHUNKS) pool.offer( chunk);
+        else pooledChunks.decrementAndGet();
+    }
+
+    @Override
+    public void write( int b) throws IOException {
+        writableChunk().put( (byte)b);
+        size += 1;
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ByteBuffer chunk = writableChunk();
+            int count = Math.min( len, chunk.remaining());
+            chunk.put( b, off, count);
+            off += count;
+            len -= count;
+            size += count;
+        }
+    }
+
+    // Returns the chunk to write to, making room if the last one is full.
+    private ByteBuffer writableChunk() throws IOException
+    {
+        ByteBuffer last = chunks.isEmpty() ? null : chunks.get( chunks.size() - 1);
+        if (last != null && last.hasRemaining()) return last;
+
+        if (spillChannel != null) {
+            drain( last);
+            return last;
+        }
+
+        if (size >= spillThreshold) {
+            spill();
+            return chunks.get(0);
+        }
+
+        if (last == null || last.capacity() < CHUNK_SIZE) {
+            int capacity = (last == null) ? INITIAL_SIZE : Math.min( last.capacity() * 2, CHUNK_SIZE);
+            ByteBuffer chunk = (capacity == CHUNK_SIZE) ? takeChunk() : ByteBuffer.allocate( capacity);
+            if (last != null) {
+                last.flip();
+                chunk.put( last);
+                chunks.clear();
+            }
+            chunks.add( chunk);
+            return chunk;
+        }
+
+        ByteBuffer chunk = takeChunk();
+        chunks.add( chunk);
+        return chunk;
+    }
+
+    // Move the data to a temporary file and keep one chunk as a write buffer.
+    private void spill() throws IOException
+    {
+        spillFile = File.createTempFile( "zioentry", ".tmp", spillDirectory);
+        if (log.isDebugEnabled()) log.debug(String.format("Spilling %d bytes to %s", size, spillFile));
+        spillOut = new RandomAccessFile( spillFile, "rw");
+        spillChannel = spillOut.getChannel();
+
+        for (ByteBuffer chunk : chunks) drain( chunk);
+
+        ByteBuffer writeBuffer = chunks.get(0);
+        for (int i = 1; i < chunks.size(); i++) returnChunk( chunks.get(i));
+        chunks = new ArrayList<ByteBuffer>();
+        chunks.add( writeBuffer);
+    }
+
+    // Append the chunk's data to the spill file and empty the chunk.
+    private void drain( ByteBuffer chunk) throws IOException
+    {
+        chunk.flip();
+        while (chunk.hasRemaining()) spillChannel.write( chunk);
+        chunk.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (spillChannel != null && !chunks.isEmpty()) drain( chunks.get(0));
+    }
+
+    /** Returns the number of bytes written. */
+    public long size() {
+        return size;
+    }
+
+    /** Write the data to the output.  It is also written to the monitor if that is not null. */
+    void writeTo( ZipOutput output, OutputStream monitor) throws IOException
+    {
+        close();
+
+        if (spillChannel != null) {
+            if (monitor == null) {
+                output.writeBytes( spillChannel, 0, size);
+                return;
+            }
+            byte[] buffer = new byte[CHUNK_SIZE];
+            InputStream data = getInputStream();
+            int numRead;
+            while ((numRead = data.read( buffer)) > 0) {
+                output.writeBytes( buffer, 0, numRead);
+                monitor.write( buffer, 0, numRead);
+            }
+            return;
+        }
+
+        byte[] scratch = null;
+        for (ByteBuffer chunk : chunks) {
+            ByteBuffer data = chunk.duplicate();
+            data.flip();
+            if (monitor == null) {
+                output.writeBytes( data);
+            }
+            else if (data.hasArray()) {
+                output.writeBytes( data.array(), data.arrayOffset(), data.remaining());
+                monitor.write( data.array(), data.arrayOffset(), data.remaining());
+            }
+            else {
+                if (scratch == null) scratch = new byte[CHUNK_SIZE];
+                int count = data.remaining();
+                data.get( scratch, 0, count);
+                output.writeBytes( scratch, 0, count);
+                monitor.write( scratch, 0, count);
+            }
+        }
+    }
+
+    /** Returns a stream that reads the data from the start.  Several streams may be open at once. */
+    public InputStream getInputStream() throws IOException
+    {
+        close();
+        return new InputStream() {
+            long position = 0;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read( b, 0, 1) == 1) ? (b[0] & 0xFF) : -1;
+            }
+
+            @Override
+            public int read( byte[] b, int off, int len) throws IOException {
+                if (position >= size) return -1;
+                int count = (int)Math.min( len, size - position);
+                if (spillChannel != null) {
+                    count = spillChannel.read( ByteBuffer.wrap( b, off, count), position);
+                    if (count < 0) return -1;
+                }
+                else {
+                    ByteBuffer chunk = chunks.get( (int)(position / CHUNK_SIZE)).duplicate();
+                    int chunkPosition = (int)(position % CHUNK_SIZE);
+                    count = Math.min( count, CHUNK_SIZE - chunkPosition);
+                    chunk.position( chunkPosition);
+                    chunk.get( b, off, count);
+                }
+                position += count;
+                return count;
+            }
+
+            @Override
+            public long skip( long n) {
+                long count = Math.max( 0, Math.min( n, size - position));
+                position += count;
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return (int)Math.min( size - position, Integer.MAX_VALUE);
+            }
+        };
+    }
+
+    /** Return the chunks to the pool and delete the temporary file, if any.  The data can't be used afterwards. */
+    public void release()
+    {
+        for (ByteBuffer chunk : chunks) returnChunk( chunk);
+        chunks = new ArrayList<ByteBuffer>();
+        size = 0;
+
+        if (spillChannel != null) {
+            try { spillOut.close(); } catch (IOException x) {}
+            if (!spillFile.delete()) log.warn("Unable to delete " + spillFile);
+            spillChannel = null;
+            spillOut = null;
+            spillFile = null;
+        }
+    }
+}
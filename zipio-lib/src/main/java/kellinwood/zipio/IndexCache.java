@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+import kellinwood.logging.Logger;
+
+/**
+ * Saves the CentralDirectoryIndex of a zip file to disk, so that later reads of the same file can
+ * map the index back in instead of scanning for the end of central directory record and parsing
+ * every entry.  On a hit only the end of central directory record is read, to validate the saved
+ * index.  The central directory itself is mapped, not read, and its records are parsed when they
+ * are used, so only the pages holding the names and entries that are looked up are loaded.  (If
+ * the input can't be mapped the directory is read as usual.)  By default the index is stored in a sidecar file next to the zip file, named by
+ * adding SUFFIX to its name.  If a cache directory is given, the index files are stored there
+ * instead, named by a hash of the zip file's canonical path.
+ *
+ * A saved index is used only if the path, length and modification time of the zip file and a
+ * CRC-32 of its end of central directory record all match what was saved, otherwise it is
+ * rebuilt and replaced.  Saving is best effort: if the index can't be written, e.g., the
+ * directory is read-only, the zip file is still read normally.
+ */
+public class IndexCache
+{
+    static Logger log = Logger.getLogger(IndexCache.class);
+
+    public static final String SUFFIX = ".zioidx";
+
+    static final int MAGIC = 0x58494f5a; // "ZIOX"
+    static final int VERSION = 2;
+
+    // The header is followed by the canonical path of the zip file in UTF-8, padded to a multiple
+    // of 8 bytes, and then the index columns.
+    static final int HEADER_SIZE = 64;
+
+    // The end of central directory record is at most this long, including the comment.
+    static final int MAX_EOCD_LENGTH = 22 + 0xFFFF;
+
+    private final File directory;
+
+    // Statistics, guarded by this.
+    private int hits = 0;
+    private int misses = 0;
+    private int writes = 0;
+
+    /** Store index files next to the zip files. */
+    public IndexCache() {
+        this( null);
+    }
+
+    /** Store index files in the given directory, or next to the zip files if it is null. */
+    public IndexCache( File directory) {
+        this.directory = directory;
+    }
+
+    /** Returns the file used to save the index of the given zip file. */
+    public File getCacheFile( String zipFilename) throws IOException
+    {
+        String path = new File( zipFilename).getCanonicalPath();
+        if (directory == null) return new File( path + SUFFIX);
+        return new File( directory, digest( path) + SUFFIX);
+    }
+
+    private static String digest( String path)
+    {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest( path.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder();
+            for (byte b : hash) name.append( String.format("%02x", b & 0xFF));
+            return name.toString();
+        }
+        catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException( x.getMessage(), x);
+        }
+        catch (UnsupportedEncodingException x) {
+            throw new IllegalStateException( x.getMessage(), x);
+        }
+    }
+
+    /** Sets the input's central directory end and index from its saved index.  Returns false if there
+     *  is no valid saved index.
+     */
+    boolean load( ZipInput input)
+    {
+        boolean debug = log.isDebugEnabled();
+        try {
+            File cacheFile = getCacheFile( input.getFilename());
+            if (!cacheFile.isFile() || !tryLoad( input, cacheFile)) {
+                synchronized (this) { misses += 1; }
+                return false;
+            }
+            synchronized (this) { hits += 1; }
+            if (debug) log.debug(String.format("Loaded index of %d entries from %s", input.index.size(), cacheFile));
+            return true;
+        }
+        catch (Exception x) {
+            if (debug) log.debug("Saved index not used: " + x.getMessage());
+            input.centralEnd = null;
+            input.index = null;
+            synchronized (this) { misses += 1; }
+            return false;
+        }
+    }
+
+    private boolean tryLoad( ZipInput input, File cacheFile) throws IOException
+    {
+        ByteBuffer saved;
+        RandomAccessFile raf = new RandomAccessFile( cacheFile, "r");
+        try {
+            // The mapping remains valid after the file is closed.
+            saved = raf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        finally {
+            raf.close();
+        }
+        saved.order( ByteOrder.LITTLE_ENDIAN);
+
+        if (saved.limit() < HEADER_SIZE || saved.getInt( 0) != MAGIC || saved.getInt( 4) != VERSION) return false;
+
+        File file = new File( input.getFilename());
+        if (saved.getLong( 8) != input.getFileLength() || saved.getLong( 16) != file.lastModified()) return false;
+
+        long posEOCDR = saved.getLong( 24);
+        int eocdLength = saved.getInt( 32);
+        if (posEOCDR < 0 || eocdLength < 22 || posEOCDR + eocdLength > input.getFileLength()) return false;
+        byte[] eocd = readEocd( input, posEOCDR, eocdLength);
+        if (saved.getInt( 36) != crc( eocd)) return false;
+
+        int count = saved.getInt( 40);
+        int slots = saved.getInt( 44);
+        int directoryLength = saved.getInt( 48);
+        int pathLength = saved.getInt( 52);
+        long directoryOffset = saved.getLong( 56);
+        if (pathLength < 0 || HEADER_SIZE + pathLength > saved.limit()) return false;
+        if (count < 0 || slots <= 0 || (slots & (slots - 1)) != 0) return false;
+        if (directoryOffset < 0 || directoryLength < 0 || directoryOffset + directoryLength > posEOCDR) return false;
+
+        byte[] path = new byte[pathLength];
+        saved.position( HEADER_SIZE);
+        saved.get( path);
+        if (!new String( path, "UTF-8").equals( file.getCanonicalPath())) return false;
+
+        // The saved values were read from the same EOCD record (and ZIP64 record, if any), as the CRC shows.
+        CentralEnd centralEnd = new CentralEnd();
+        centralEnd.numCentralEntries = centralEnd.totalCentralEntries = count;
+        centralEnd.centralDirectorySize = directoryLength;
+        centralEnd.centralStartOffset = directoryOffset;
+        int commentLength = (eocd[20] & 0xFF) | ((eocd[21] & 0xFF) << 8);
+        centralEnd.fileComment = new String( eocd, 22, Math.min( commentLength, eocdLength - 22));
+
+        ByteBuffer directory = input.source.map( directoryOffset, directoryLength);
+        if (directory != null) {
+            input.buffer = directory;
+            input.buffer.order( ByteOrder.LITTLE_ENDIAN);
+            input.bufferStart = directoryOffset;
+        }
+        else {
+            input.loadCentralDirectory( directoryOffset, directoryLength);
+            if (input.bufferStart != directoryOffset || input.buffer.limit() != directoryLength) return false;
+        }
+
+        saved.position( HEADER_SIZE + padding( pathLength));
+        input.index = new CentralDirectoryIndex( input.buffer, input.bufferStart, count, slots, saved);
+        input.centralEnd = centralEnd;
+        input.posEOCDR = posEOCDR;
+        return true;
+    }
+
+    private static int padding( int length) {
+        return (length + 7) & ~7;
+    }
+
+    private static int eocdLength( ZipInput input) {
+        return (int)Math.min( input.getFileLength() - input.posEOCDR, MAX_EOCD_LENGTH);
+    }
+
+    private static byte[] readEocd( ZipInput input, long posEOCDR, int eocdLength) throws IOException
+    {
+        byte[] eocd = new byte[eocdLength];
+        input.readFully( posEOCDR, ByteBuffer.wrap( eocd));
+        return eocd;
+    }
+
+    private static int crc( byte[] data)
+    {
+        CRC32 crc = new CRC32();
+        crc.update( data);
+        return (int)crc.getValue();
+    }
+
+    /** Save the input's index, if it was read with one, replacing any index saved before. */
+    void store( ZipInput input)
+    {
+        CentralDirectoryIndex index = input.index;
+        if (index == null) return;
+
+        boolean debug = log.isDebugEnabled();
+        File temp = null;
+        try {
+            File file = new File( input.getFilename());
+            File cacheFile = getCacheFile( input.getFilename());
+            byte[] path = file.getCanonicalPath().getBytes("UTF-8");
+            int eocdLength = eocdLength( input);
+
+            ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE + padding( path.length));
+            header.order( ByteOrder.LITTLE_ENDIAN);
+            header.putInt( MAGIC);
+            header.putInt( VERSION);
+            header.putLong( input.getFileLength());
+            header.putLong( file.lastModified());
+            header.putLong( input.posEOCDR);
+            header.putInt( eocdLength);
+            header.putInt( crc( readEocd( input, input.posEOCDR, eocdLength)));
+            header.putInt( index.size());
+            header.putInt( index.getSlots());
+            header.putInt( index.directory.limit());
+            header.putInt( path.length);
+            header.putLong( index.directoryOffset);
+            header.position( HEADER_SIZE);
+            header.put( path);
+            header.clear();
+
+            ByteBuffer columns = index.columns.duplicate();
+            columns.clear();
+            columns.limit( index.getColumnsLength());
+
+            // Write a temporary file and rename it, so readers never see a partial index.
+            File cacheDirectory = cacheFile.getAbsoluteFile().getParentFile();
+            temp = File.createTempFile( "zioidx", ".tmp", cacheDirectory);
+            FileOutputStream out = new FileOutputStream( temp);
+            try {
+                FileChannel channel = out.getChannel();
+                while (header.hasRemaining()) channel.write( header);
+                while (columns.hasRemaining()) channel.write( columns);
+            }
+            finally {
+                out.close();
+            }
+            if (!temp.renameTo( cacheFile)) {
+                cacheFile.delete();
+                if (!temp.renameTo( cacheFile)) throw new IOException( "Unable to rename " + temp + " to " + cacheFile);
+            }
+            temp = null;
+            synchronized (this) { writes += 1; }
+            if (debug) log.debug(String.format("Saved index of %d entries to %s", index.size(), cacheFile));
+        }
+        catch (IOException x) {
+            if (debug) log.debug("Index not saved: " + x.getMessage());
+        }
+        finally {
+            if (temp != null) temp.delete();
+        }
+    }
+
+    /** Returns the number of reads that used a saved index. */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /** Returns the number of reads that had to build the index. */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /** Returns the number of indexes saved. */
+    public synchronized int getWrites() {
+        return writes;
+    }
+
+    public synchronized String toString() {
+        return String.format("%d hits, %d misses, %d writes", hits, misses, writes);
+    }
+}
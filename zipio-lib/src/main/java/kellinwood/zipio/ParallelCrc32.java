@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Computes the CRC-32 of a large region of a ZipSource on the threads of a ForkJoinPool.  The region
+ * is split into SEGMENT_SIZE segments whose CRCs are computed independently, from positional reads,
+ * and then merged in order with combine(), which is zlib's crc32_combine().
+ */
+public class ParallelCrc32
+{
+    public static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private ParallelCrc32() {}
+
+    /** Returns the CRC-32 of length bytes of the source starting at the given position.  If pool is
+     *  null, or the region is not larger than two segments, the CRC is computed on the calling thread.
+     */
+    public static int compute( ZipSource source, long position, long length, ForkJoinPool pool) throws IOException {
+        return compute( source, position, length, pool, SEGMENT_SIZE);
+    }
+
+    static int compute( final ZipSource source, long position, long length, ForkJoinPool pool, int segmentSize) throws IOException
+    {
+        if (pool == null || length <= 2L * segmentSize) return segmentCrc( source, position, length);
+
+        List<Future<Integer>> segments = new ArrayList<Future<Integer>>();
+        for (long offset = 0; offset < length; offset += segmentSize) {
+            final long segmentPosition = position + offset;
+            final long segmentLength = Math.min( segmentSize, length - offset);
+            segments.add( pool.submit( new Callable<Integer>() {
+                public Integer call() throws IOException {
+                    return segmentCrc( source, segmentPosition, segmentLength);
+                }
+            }));
+        }
+
+        int crc = 0;
+        long offset = 0;
+        try {
+            for (Future<Integer> segment : segments) {
+                long segmentLength = Math.min( segmentSize, length - offset);
+                crc = combine( crc, segment.get(), segmentLength);
+                offset += segmentLength;
+            }
+        }
+        catch (InterruptedException x) {
+            throw new IOException( x.getMessage(), x);
+        }
+        catch (ExecutionException x) {
+            throw new IOException( x.getCause().getMessage(), x.getCause());
+        }
+        finally {
+            for (Future<Integer> segment : segments) segment.cancel( false);
+        }
+        return crc;
+    }
+
+    private static int segmentCrc( ZipSource source, long position, long length) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        byte[] buffer = CodecPool.getBuffer();
+        try {
+            long numRead = 0;
+            while (numRead != length) {
+                int count = source.read( ByteBuffer.wrap( buffer, 0, (int)Math.min( buffer.length, length - numRead)), position + numRead);
+                if (count < 0) throw new EOFException( String.format("EOF reached at pos=0x%08x", position + numRead));
+                crc.update( buffer, 0, count);
+                numRead += count;
+            }
+        }
+        finally {
+            CodecPool.release( buffer);
+        }
+        return (int)crc.getValue();
+    }
+
+    /** Returns the CRC-32 of two concatenated blocks of data, given the CRC of each one and the length
+     *  of the second.  This applies the effect of length2 zero bytes to crc1 by repeated squaring of
+     *  the operator matrix over GF(2), so it takes O(log length2) time.
+     */
+    public static int combine( int crc1, int crc2, long length2)
+    {
+        if (length2 <= 0) return crc1;
+
+        int[] even = new int[32]; // operator for an even power of two zero bits
+        int[] odd = new int[32];  // operator for an odd power of two zero bits
+
+        // The operator for one zero bit.
+        odd[0] = 0xedb88320;
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square( even, odd); // two zero bits
+        square( odd, even); // four zero bits
+
+        // Apply the operator for each bit set in length2, i.e., for that many zero bytes.
+        do {
+            square( even, odd);
+            if ((length2 & 1) != 0) crc1 = times( even, crc1);
+            length2 >>>= 1;
+            if (length2 == 0) break;
+
+            square( odd, even);
+            if ((length2 & 1) != 0) crc1 = times( odd, crc1);
+            length2 >>>= 1;
+        } while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static int times( int[] matrix, int vector)
+    {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) sum ^= matrix[i];
+        }
+        return sum;
+    }
+
+    private static void square( int[] square, int[] matrix)
+    {
+        for (int n = 0; n < 32; n++) square[n] = times( matrix, matrix[n]);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses data to a raw deflate stream using the threads of a ForkJoinPool, in the manner of pigz.
+ * The data is split into BLOCK_SIZE blocks which are compressed independently, each one using the
+ * last 32K of the data before it as a preset dictionary so that the compression ratio barely
+ * suffers.  Every block but the last ends with a sync flush, i.e., on a byte boundary without the
+ * final-block bit, so the compressed blocks concatenate into a single valid deflate stream.
+ * Flushing the stream ends the current block early, so everything written so far can be
+ * decompressed from the underlying stream.
+ */
+public class ParallelDeflaterOutputStream extends OutputStream
+{
+    public static final int BLOCK_SIZE = 128 * 1024;
+
+    // The deflate window size, and thus the most of the previous block that can be referenced.
+    static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private final OutputStream out;
+    private final int level;
+    private final ForkJoinPool pool;
+    private final int maxPending;
+
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength = 0;
+    private byte[] dictionary = null; // the last DICTIONARY_SIZE (or fewer) bytes of the data submitted
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+    private boolean closed = false;
+
+    public ParallelDeflaterOutputStream( OutputStream out, int level, ForkJoinPool pool)
+    {
+        this.out = out;
+        this.level = level;
+        this.pool = pool;
+        // Limit the number of compressed blocks held in memory while waiting their turn to be written.
+        this.maxPending = 2 * pool.getParallelism();
+    }
+
+    @Override
+    public void write( int b) throws IOException {
+        write( new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        while (len > 0) {
+            int count = Math.min( len, BLOCK_SIZE - blockLength);
+            System.arraycopy( b, off, block, blockLength, count);
+            blockLength += count;
+            off += count;
+            len -= count;
+            if (blockLength == BLOCK_SIZE) submitBlock( false);
+        }
+    }
+
+    private void submitBlock( final boolean last) throws IOException
+    {
+        final byte[] data = block;
+        final int length = blockLength;
+        final byte[] dictionary = this.dictionary;
+
+        if (last && pending.isEmpty()) {
+            // Everything fit in one block, there is nothing to gain from handing it to another thread.
+            out.write( deflate( data, length, dictionary, true));
+        }
+        else {
+            pending.add( pool.submit( new Callable<byte[]>() {
+                public byte[] call() {
+                    return deflate( data, length, dictionary, last);
+                }
+            }));
+            while (pending.size() > maxPending) writeNext();
+        }
+
+        this.dictionary = nextDictionary( dictionary, data, length);
+        block = last ? null : new byte[BLOCK_SIZE];
+        blockLength = 0;
+    }
+
+    // Returns the last DICTIONARY_SIZE bytes of the data, including the end of the previous
+    // dictionary if the data is shorter, e.g., a block ended early by flush().
+    private static byte[] nextDictionary( byte[] previous, byte[] data, int length)
+    {
+        if (length >= DICTIONARY_SIZE) {
+            byte[] next = new byte[DICTIONARY_SIZE];
+            System.arraycopy( data, length - DICTIONARY_SIZE, next, 0, DICTIONARY_SIZE);
+            return next;
+        }
+        int kept = (previous == null) ? 0 : Math.min( previous.length, DICTIONARY_SIZE - length);
+        byte[] next = new byte[kept + length];
+        if (kept > 0) System.arraycopy( previous, previous.length - kept, next, 0, kept);
+        System.arraycopy( data, 0, next, kept, length);
+        return next;
+    }
+
+    private void writeNext() throws IOException
+    {
+        try {
+            out.write( pending.removeFirst().get());
+        }
+        catch (InterruptedException x) {
+            throw new IOException( x.getMessage(), x);
+        }
+        catch (ExecutionException x) {
+            throw new IOException( x.getCause().getMessage(), x.getCause());
+        }
+    }
+
+    private byte[] deflate( byte[] data, int length, byte[] dictionary, boolean last)
+    {
+        Deflater deflater = CodecPool.getDeflater( level);
+        byte[] buffer = CodecPool.getBuffer();
+        try {
+            if (dictionary != null && dictionary.length > 0) {
+                deflater.setDictionary( dictionary);
+            }
+            deflater.setInput( data, 0, length);
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream( length / 2 + 64);
+            int count;
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    count = deflater.deflate( buffer);
+                    compressed.write( buffer, 0, count);
+                }
+            }
+            else {
+                // A sync flush is complete once deflate() leaves room in the output buffer.
+                do {
+                    count = deflater.deflate( buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write( buffer, 0, count);
+                } while (count == buffer.length);
+            }
+            return compressed.toByteArray();
+        }
+        finally {
+            CodecPool.release( buffer);
+            CodecPool.release( deflater);
+        }
+    }
+
+    /** Compress the data written so far, ending it with a sync flush, and write all of the blocks to
+     *  the underlying stream before flushing it.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!closed) {
+            if (blockLength > 0) submitBlock( false);
+            while (!pending.isEmpty()) writeNext();
+        }
+        out.flush();
+    }
+
+    /** Compress the remaining data, write all of the blocks and close the underlying stream. */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            submitBlock( true);
+            while (!pending.isEmpty()) writeNext();
+        }
+        finally {
+            for (Future<byte[]> future : pending) future.cancel( false);
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import kellinwood.logging.Logger;
+
+/**
+ * Reads the data of upcoming entries on a background thread while the caller processes the current
+ * one, so that reading the input overlaps with, e.g., inflating and digesting it.  The entries are
+ * returned by next() in the order given.  The (possibly compressed) data of entries copied from a
+ * zip file is read into memory ahead of time, but no more than maxBufferedBytes at once; the
+ * reading thread stalls until the caller catches up.  Other entries, and those larger than
+ * maxBufferedBytes, are read by the caller as usual when it gets to them.
+ */
+public class ReadAhead
+{
+    static Logger log = Logger.getLogger(ReadAhead.class);
+
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 16L * 1024 * 1024;
+
+    private static class Item {
+        final ZioEntry entry;
+        final byte[] rawData;
+        final Throwable failure;
+
+        Item( ZioEntry entry, byte[] rawData, Throwable failure) {
+            this.entry = entry;
+            this.rawData = rawData;
+            this.failure = failure;
+        }
+    }
+
+    // Queued when the reading thread stops, however it stops, so next() never waits for a dead thread.
+    private static final Item END = new Item( null, null, null);
+
+    private final List<ZioEntry> entries;
+    private final long maxBufferedBytes;
+    private final LinkedBlockingQueue<Item> ready = new LinkedBlockingQueue<Item>();
+    private final StageStatistics statistics = new StageStatistics("read-ahead");
+
+    private long bufferedBytes = 0; // guarded by this
+    private volatile boolean closed = false;
+    private int returned = 0;
+    private ZioEntry current = null;
+    private byte[] currentData = null;
+
+    public ReadAhead( Collection<ZioEntry> entries, long maxBufferedBytes)
+    {
+        if (maxBufferedBytes <= 0 || maxBufferedBytes > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException( "Invalid read-ahead buffer size: " + maxBufferedBytes);
+        }
+        this.entries = new ArrayList<ZioEntry>( entries);
+        this.maxBufferedBytes = maxBufferedBytes;
+        Thread thread = new Thread( new Runnable() {
+            public void run() {
+                readEntries();
+            }
+        }, "zipio-read-ahead");
+        thread.setDaemon( true);
+        thread.start();
+    }
+
+    private void readEntries()
+    {
+        try {
+            for (ZioEntry entry : entries) {
+                if (closed) return;
+                byte[] rawData = null;
+                Throwable failure = null;
+                try {
+                    long size = entry.getCompressedSize();
+                    if (entry.getCopiedInput() != null && size <= maxBufferedBytes) {
+                        if (!reserve( size)) return;
+                        try {
+                            rawData = entry.readRawData();
+                        }
+                        catch (Throwable x) {
+                            releaseBytes( size);
+                            throw x;
+                        }
+                        statistics.processed( size);
+                    }
+                }
+                catch (Throwable x) {
+                    // E.g., a bad local header or running out of memory, reported to the caller by next().
+                    failure = x;
+                }
+                ready.add( new Item( entry, rawData, failure));
+                if (failure != null) return;
+            }
+        }
+        finally {
+            ready.add( END);
+        }
+    }
+
+    // Wait for room for size more bytes, unless nothing is buffered.  Returns false if closed meanwhile.
+    private synchronized boolean reserve( long size)
+    {
+        if (bufferedBytes > 0 && bufferedBytes + size > maxBufferedBytes) {
+            long start = System.nanoTime();
+            try {
+                while (!closed && bufferedBytes > 0 && bufferedBytes + size > maxBufferedBytes) wait();
+            }
+            catch (InterruptedException x) {
+                return false;
+            }
+            statistics.stalled( System.nanoTime() - start);
+        }
+        if (closed) return false;
+        bufferedBytes += size;
+        return true;
+    }
+
+    private synchronized void releaseBytes( long size)
+    {
+        bufferedBytes -= size;
+        notifyAll();
+    }
+
+    /** Advance to the next entry, waiting for its data if it is still being read.  Returns null after the last entry. */
+    public ZioEntry next() throws IOException
+    {
+        if (currentData != null) releaseBytes( currentData.length);
+        current = null;
+        currentData = null;
+        if (returned == entries.size()) return null;
+
+        Item item = ready.poll();
+        if (item == null) {
+            long start = System.nanoTime();
+            try {
+                item = ready.take();
+            }
+            catch (InterruptedException x) {
+                throw new InterruptedIOException( "Interrupted while waiting for " + entries.get( returned).getName());
+            }
+            statistics.waited( System.nanoTime() - start);
+        }
+        if (item == END) throw new IOException( "Read-ahead stopped before " + entries.get( returned).getName());
+        if (item.failure != null) {
+            if (item.failure instanceof IOException) throw (IOException)item.failure;
+            if (item.failure instanceof RuntimeException) throw (RuntimeException)item.failure;
+            if (item.failure instanceof Error) throw (Error)item.failure;
+            throw new IOException( item.failure.getMessage(), item.failure);
+        }
+        returned += 1;
+        current = item.entry;
+        currentData = item.rawData;
+        return current;
+    }
+
+    /** Returns a stream of the current entry's content, from memory if its data was read ahead. */
+    public InputStream getInputStream() throws IOException
+    {
+        if (current == null) throw new IllegalStateException( "No current entry");
+        return (currentData != null) ? current.getRawDataInputStream( currentData) : current.getInputStream();
+    }
+
+    /** Returns the (possibly compressed) data of the current entry if it was read ahead, otherwise null. */
+    public ByteBuffer getRawData()
+    {
+        if (current == null) throw new IllegalStateException( "No current entry");
+        return (currentData != null) ? ByteBuffer.wrap( currentData) : null;
+    }
+
+    /** Stop reading ahead.  The thread is not interrupted, since that would close an input's FileChannel
+     *  if it were reading from it, so it finishes reading the current entry first.
+     */
+    public void close()
+    {
+        closed = true;
+        synchronized (this) {
+            notifyAll();
+        }
+        if (log.isDebugEnabled()) log.debug( statistics.toString());
+    }
+
+    public StageStatistics getStatistics() {
+        return statistics;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for a pipeline stage that runs on its own thread, e.g., ReadAhead or the write-behind
+ * stage of ZipOutput.  A stall is when the thread feeding the stage had to wait because the stage's
+ * buffers were full, i.e., backpressure.  A wait is when the stage (or its consumer) had to wait for
+ * data.  Stalls mean the stage is the bottleneck, waits mean it is not.
+ */
+public class StageStatistics
+{
+    private final String name;
+    private final AtomicLong items = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong stallNanos = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    public StageStatistics( String name) {
+        this.name = name;
+    }
+
+    void processed( long byteCount) {
+        items.incrementAndGet();
+        bytes.addAndGet( byteCount);
+    }
+
+    void stalled( long nanos) {
+        stalls.incrementAndGet();
+        stallNanos.addAndGet( nanos);
+    }
+
+    void waited( long nanos) {
+        waits.incrementAndGet();
+        waitNanos.addAndGet( nanos);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Returns the number of items, e.g., entries or buffers, that passed through the stage. */
+    public long getItems() {
+        return items.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getStalls() {
+        return stalls.get();
+    }
+
+    public long getStallNanos() {
+        return stallNanos.get();
+    }
+
+    public long getWaits() {
+        return waits.get();
+    }
+
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    public String toString() {
+        return String.format("%s: %d items, %d bytes; %d stalls (%d ms) on full buffers, %d waits (%d ms) for data",
+                             name, getItems(), getBytes(), getStalls(), getStallNanos() / 1000000, getWaits(), getWaitNanos() / 1000000);
+    }
+}
@@ -16,16 +16,19 @@
 package kellinwood.zipio;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.File;
 import java.io.OutputStream;
 import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.zip.CRC32;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
+import java.util.zip.InflaterOutputStream;
 import java.util.zip.ZipEntry;
 
 import kellinwood.logging.Logger;
@@ -42,9 +45,10 @@ public class ZioEntry implements Cloneable {
     private short modificationTime;
     private short modificationDate;
     private int crc32;
-    private int compressedSize;
-    private int size;
+    private long compressedSize;
+    private long size;
     private String filename;
+    private byte[] filenameBytes = null;
     private byte[] extraData;
     private short numAlignBytes = 0;
     private String fileComment;
@@ -52,13 +56,35 @@ public class ZioEntry implements Cloneable {
     private short internalAttributes;
     private int externalAttributes;
     
-    private int localHeaderOffset;
+    private long localHeaderOffset;
     private long dataPosition = -1;
-    private byte[] data = null;
+    private EntryBuffer data = null;
     private ZioEntryOutputStream entryOut = null;
     
 
-    private static byte[] alignBytes = new byte[4];
+    private int endAlignment = 0;
+    private ForkJoinPool deflatePool = null;
+    private CompressionPolicy compressionPolicy = null;
+
+    /** Alignment, in bytes, of the data for uncompressed (i.e., "Stored") entries. */
+    public static final int STORED_ALIGNMENT = 4;
+
+    // Sizes and offsets at or above this value are stored in the ZIP64 extended information extra field.
+    static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    static final short ZIP64_EXTRA_ID = 0x0001;
+
+    private static final byte[] EMPTY_EXTRA = new byte[0];
+
+    /** Orders entries of a zip file by the offset of their local header, i.e., the order their data
+     *  is in the file, followed by other entries in their original order.  Reading the entries in
+     *  this order is sequential I/O, rather than seeking back and forth as the name order may.  Only
+     *  valid before the entries are written, which changes their local header offset.
+     */
+    public static final Comparator<ZioEntry> INPUT_ORDER = new Comparator<ZioEntry>() {
+        public int compare( ZioEntry a, ZioEntry b) {
+            return Long.compare( a.getInputOffset(), b.getInputOffset());
+        }
+    };
     
     private static Logger log = Logger.getLogger(ZipEntry.class);
 
@@ -78,32 +104,27 @@ public class ZioEntry implements Cloneable {
     
     public ZioEntry( String name, String sourceDataFile)
         throws IOException
+    {
+        this( name, sourceDataFile, null);
+    }
+
+    /** Create a stored entry with the content of the given file.  If crcPool is not null, the CRC of
+     *  a large file is computed in segments on its threads, see ParallelCrc32.
+     */
+    public ZioEntry( String name, String sourceDataFile, ForkJoinPool crcPool)
+        throws IOException
     {
         zipInput = new ZipInput( sourceDataFile);
         filename = name;
         fileComment = "";
         this.compression = 0;
-        this.size = (int)zipInput.getFileLength();
+        this.size = zipInput.getFileLength();
         this.compressedSize = this.size;
 
         if (log.isDebugEnabled()) 
             log.debug(String.format("Computing CRC for %s, size=%d",sourceDataFile,size));
         
-        // compute CRC
-        CRC32 crc = new CRC32();
-
-        byte[] buffer = new byte[8096];
-
-        int numRead = 0;
-        while (numRead != size) {
-            int count = zipInput.read( buffer, 0, Math.min( buffer.length, (this.size - numRead)));
-            if (count > 0) {
-                crc.update( buffer, 0, count);
-                numRead += count;
-            }
-        }
-
-        this.crc32 = (int)crc.getValue();
+        this.crc32 = ParallelCrc32.compute( zipInput.source, 0, size, crcPool);
 
         zipInput.seek(0);
         this.dataPosition = 0;
@@ -113,7 +134,7 @@ public class ZioEntry implements Cloneable {
     
     
 
-    public ZioEntry( String name, String sourceDataFile, short compression, int crc32, int compressedSize, int size)
+    public ZioEntry( String name, String sourceDataFile, short compression, int crc32, long compressedSize, long size)
         throws IOException
     {
         zipInput = new ZipInput( sourceDataFile);
@@ -146,23 +167,26 @@ public class ZioEntry implements Cloneable {
     
     public void readLocalHeader() throws IOException
     {
-        ZipInput input = zipInput;
-        int tmp;
         boolean debug = log.isDebugEnabled();
 
-        input.seek( localHeaderOffset);
+        if (debug) log.debug( String.format("FILE POSITION: 0x%08x", localHeaderOffset));
 
-        if (debug) log.debug( String.format("FILE POSITION: 0x%08x", input.getFilePointer()));
+        // The fixed size part of the header is fetched with a positional read, which leaves
+        // the input's file pointer alone so that entries can be read from several threads.
+        ByteBuffer input = ByteBuffer.allocate( 30);
+        input.order( ByteOrder.LITTLE_ENDIAN);
+        zipInput.readFully( localHeaderOffset, input);
+        input.flip();
 
         // 0 	4 	Local file header signature = 0x04034b50
-        int signature = input.readInt();
+        int signature = input.getInt();
         if (signature != 0x04034b50) {
-            throw new IllegalStateException( String.format("Local header not found at pos=0x%08x, file=%s", input.getFilePointer(), filename));
+            throw new IllegalStateException( String.format("Local header not found at pos=0x%08x, file=%s", localHeaderOffset, filename));
         }
 
         // This method is usually called just before the data read, so
-        // its only purpose currently is to position the file pointer
-        // for the data read.  The entry's attributes might also have
+        // its only purpose currently is to find the position of the
+        // data.  The entry's attributes might also have
         // been changed since the central dir entry was read (e.g.,
         // filename), so throw away the values here.
 
@@ -170,65 +194,127 @@ public class ZioEntry implements Cloneable {
         short tmpShort;
         
         // 4 	2 	Version needed to extract (minimum)
-        /* versionRequired */ tmpShort =  input.readShort();
+        /* versionRequired */ tmpShort =  input.getShort();
         if (debug) log.debug(String.format("Version required: 0x%04x", tmpShort /*versionRequired*/));
 
         // 6 	2 	General purpose bit flag
-        /* generalPurposeBits */ tmpShort = input.readShort();
+        /* generalPurposeBits */ tmpShort = input.getShort();
         if (debug) log.debug(String.format("General purpose bits: 0x%04x", tmpShort /* generalPurposeBits */));
         
         // 8 	2 	Compression method
-        /* compression */ tmpShort = input.readShort();
+        /* compression */ tmpShort = input.getShort();
         if (debug) log.debug(String.format("Compression: 0x%04x", tmpShort /* compression */));
 
         // 10 	2 	File last modification time
-        /* modificationTime */ tmpShort = input.readShort();
+        /* modificationTime */ tmpShort = input.getShort();
         if (debug) log.debug(String.format("Modification time: 0x%04x", tmpShort /* modificationTime */));
 
         // 12 	2 	File last modification date
-        /* modificationDate */ tmpShort = input.readShort();
+        /* modificationDate */ tmpShort = input.getShort();
         if (debug) log.debug(String.format("Modification date: 0x%04x", tmpShort /* modificationDate */));
 
         // 14 	4 	CRC-32
-        /* crc32 */ tmpInt = input.readInt();
+        /* crc32 */ tmpInt = input.getInt();
         if (debug) log.debug(String.format("CRC-32: 0x%04x", tmpInt /*crc32*/));
 
         // 18 	4 	Compressed size
-        /* compressedSize*/ tmpInt = input.readInt();
+        /* compressedSize*/ tmpInt = input.getInt();
         if (debug) log.debug(String.format("Compressed size: 0x%04x", tmpInt /*compressedSize*/));
 
         // 22 	4 	Uncompressed size
-        /* size */ tmpInt = input.readInt();
+        /* size */ tmpInt = input.getInt();
         if (debug) log.debug(String.format("Size: 0x%04x", tmpInt /*size*/ ));
 
         // 26 	2 	File name length (n)
-        short fileNameLen = input.readShort();
+        int fileNameLen = input.getShort() & 0xFFFF;
         if (debug) log.debug(String.format("File name length: 0x%04x", fileNameLen));
 
         // 28 	2 	Extra field length (m)
-        short extraLen = input.readShort();
+        int extraLen = input.getShort() & 0xFFFF;
         if (debug) log.debug(String.format("Extra length: 0x%04x", extraLen));
 
-        // 30 	n 	File name      
-        String filename = input.readString(fileNameLen);
-        if (debug) log.debug("Filename: " + filename);
-
-        // Extra data
-        byte[] extra = input.readBytes( extraLen);
+        // 30 	n 	File name, followed by the extra data
+        if (debug) {
+            byte[] filenameBytes = new byte[fileNameLen];
+            zipInput.readFully( localHeaderOffset + 30, ByteBuffer.wrap( filenameBytes));
+            log.debug("Filename: " + new String( filenameBytes));
+        }
 
         // Record the file position of this entry's data.
-        dataPosition = input.getFilePointer();
+        dataPosition = localHeaderOffset + 30 + fileNameLen + extraLen;
         if (debug) log.debug(String.format("Data position: 0x%08x",dataPosition));
 
     }
 
     public void writeLocalEntry( ZipOutput output) throws IOException
+    {
+        writeLocalEntry( output, null);
+    }
+
+    /** Writes the local header and data to the output.  If contentMonitor is not null, the entry's 
+     *  uncompressed content is also written to it as the (possibly compressed) data is copied, 
+     *  so that the data is only read from the input once.
+     */
+    public void writeLocalEntry( ZipOutput output, OutputStream contentMonitor) throws IOException
+    {
+        writeLocalHeader( output);
+
+        boolean debug = log.isDebugEnabled();
+        if (debug) log.debug(String.format("Data position 0x%08x", output.getFilePointer()));
+
+        Inflater inflater = null;
+        OutputStream monitor = contentMonitor;
+        if (contentMonitor != null && compression != 0) {
+            inflater = CodecPool.getInflater();
+            monitor = new InflaterOutputStream( contentMonitor, inflater);
+        }
+
+        if (data != null) {
+            data.writeTo( output, monitor);
+            if (debug) log.debug(String.format("Wrote %d bytes", compressedSize));
+        }
+        else if (monitor == null) {
+            // Nothing needs to see the data on its way through, so let the output copy it directly.
+            if (debug) log.debug(String.format("Transferring %d bytes from position 0x%08x", compressedSize, dataPosition));
+            output.writeBytes( zipInput, dataPosition, compressedSize);
+        }
+        else {
+
+            if (debug) log.debug(String.format("Copying from position 0x%08x", dataPosition));
+            
+            byte[] buffer = CodecPool.getBuffer();
+            int bufferSize = buffer.length;
+            long totalCount = 0;
+            
+            while (totalCount != compressedSize) {
+                int numRead = zipInput.read( dataPosition + totalCount, buffer, 0, (int)Math.min( compressedSize -  totalCount, bufferSize));  
+                if (numRead > 0) {
+                    output.writeBytes(buffer, 0, numRead);
+                    if (monitor != null) monitor.write( buffer, 0, numRead);
+                    if (debug) log.debug(String.format("Wrote %d bytes", numRead));
+                    totalCount += numRead;
+                }
+                else throw new IllegalStateException(String.format("EOF reached while copying %s with %d bytes left to go", filename, compressedSize -  totalCount));
+            }
+            CodecPool.release( buffer);
+        }
+
+        if (inflater != null) {
+            // Supply the extra "dummy" byte needed by the nowrap Inflater, see getInputStream().
+            if (!inflater.finished()) monitor.write( 0);
+            ((InflaterOutputStream)monitor).finish();
+            CodecPool.release( inflater);
+        }
+    }
+
+    /** Write the local header, including any alignment padding, so that the data goes next. */
+    void writeLocalHeader( ZipOutput output) throws IOException
     {
         if (data == null && dataPosition < 0 && zipInput != null) {
             readLocalHeader();
         }
         
-        localHeaderOffset = (int)output.getFilePointer();
+        localHeaderOffset = output.getFilePointer();
 
         boolean debug = log.isDebugEnabled();
         
@@ -236,83 +322,170 @@ public class ZioEntry implements Cloneable {
             log.debug( String.format("Writing local header at 0x%08x - %s", localHeaderOffset, filename));
         }
         
-        if (entryOut != null) {
-            entryOut.close();
-            size = entryOut.getSize();
-            data = ((ByteArrayOutputStream)entryOut.getWrappedStream()).toByteArray();
-            compressedSize = data.length;
-            crc32 = entryOut.getCRC();
-        }
+        closeEntryOut();
         
+        // Both sizes go in the ZIP64 extra field if either one is too big for the header.
+        boolean zip64 = size >= ZIP64_LIMIT || compressedSize >= ZIP64_LIMIT;
+        byte[] zip64Extra = getZip64Extra( zip64, zip64, false);
+
         output.writeInt( 0x04034b50);
-        output.writeShort( versionRequired);
+        output.writeShort( zip64 ? (short)Math.max( versionRequired, 45) : versionRequired);
         output.writeShort( generalPurposeBits);
         output.writeShort( compression);
         output.writeShort( modificationTime);
         output.writeShort( modificationDate);
         output.writeInt( crc32);
-        output.writeInt( compressedSize);
-        output.writeInt( size);
-        output.writeShort( (short)filename.length());
+        output.writeInt( zip64 ? (int)ZIP64_LIMIT : (int)compressedSize);
+        output.writeInt( zip64 ? (int)ZIP64_LIMIT : (int)size);
+        byte[] filenameBytes = getFilenameBytes();
+        output.writeShort( (short)filenameBytes.length);
 
         numAlignBytes = 0;
+        byte[] alignmentExtra = EMPTY_EXTRA;
+
+        AlignmentPolicy alignmentPolicy = output.getAlignmentPolicy();
+        if (alignmentPolicy != null) {
+            // Drop any padding from a previous alignment, even if the entry won't be aligned now.
+            extraData = AlignmentPolicy.stripAlignment( extraData);
+        }
+
+        if (endAlignment > 0 && alignmentPolicy != null) {
+
+            // As below, but padded with an alignment field, which only goes in the local header.
+            long dataEnd = output.getFilePointer() + 2 + filenameBytes.length + extraData.length + zip64Extra.length +
+                AlignmentPolicy.EXTRA_MIN_LENGTH + compressedSize;
+            int padding = (int)((endAlignment - dataEnd % endAlignment) % endAlignment);
+            alignmentExtra = AlignmentPolicy.createExtra( endAlignment, padding);
+        }
+        else if (endAlignment > 0) {
+
+            // Pad so that the entry's data ends on a multiple of the requested alignment.
+            long dataEnd = output.getFilePointer() + 2 + filenameBytes.length + extraData.length + zip64Extra.length + compressedSize;
 
+            int dataEndMod = (int)(dataEnd % endAlignment);
+
+            if (dataEndMod > 0) {
+                numAlignBytes = (short)(endAlignment - dataEndMod);
+            }
+        }
+        else if (compression == 0 && alignmentPolicy != null) {
+
+            // Align the data with an alignment extra field, which has room for at least its header.
+            int alignment = alignmentPolicy.getAlignment( filename);
+            long dataPos = output.getFilePointer() + 2 + filenameBytes.length + extraData.length + zip64Extra.length +
+                AlignmentPolicy.EXTRA_MIN_LENGTH;
+            int padding = (int)((alignment - dataPos % alignment) % alignment);
+            alignmentExtra = AlignmentPolicy.createExtra( alignment, padding);
+        }
         // Zipalign if the file is uncompressed, i.e., "Stored", and file size is not zero.
-        if (compression == 0) {
+        else if (compression == 0) {
 
             long dataPos = output.getFilePointer() + // current position
             2 +                                  // plus size of extra data length
-            filename.length() +                  // plus filename
-            extraData.length;                    // plus extra data
+            filenameBytes.length +               // plus filename
+            extraData.length +                   // plus extra data
+            zip64Extra.length;                   // plus ZIP64 extra field
 
-            short dataPosMod4 = (short)(dataPos % 4);
+            short dataPosMod4 = (short)(dataPos % STORED_ALIGNMENT);
 
             if (dataPosMod4 > 0) {
-                numAlignBytes = (short)(4 - dataPosMod4);
+                numAlignBytes = (short)(STORED_ALIGNMENT - dataPosMod4);
             }
         }
 
         
         // 28 	2 	Extra field length (m)
-        output.writeShort( (short)(extraData.length + numAlignBytes));
+        output.writeShort( (short)(extraData.length + zip64Extra.length + alignmentExtra.length + numAlignBytes));
 
         // 30 	n 	File name
-        output.writeString( filename);
+        output.writeBytes( filenameBytes);
 
-        // Extra data
+        // Extra data, the alignment field only goes in the local header.
         output.writeBytes( extraData);
+        output.writeBytes( zip64Extra);
+        output.writeBytes( alignmentExtra);
 
         // Zipalign bytes
         if (numAlignBytes > 0) {
-            output.writeBytes( alignBytes, 0, numAlignBytes);
+            output.writeBytes( new byte[numAlignBytes]);
         }
+    }
 
-        if (debug) log.debug(String.format("Data position 0x%08x", output.getFilePointer()));
-        if (data != null) {
-            output.writeBytes( data);
-            if (debug) log.debug(String.format("Wrote %d bytes", data.length));
+    /** Returns the input if the entry is an unmodified entry of a zip file, whose header and data
+     *  may be copied verbatim, otherwise null.
+     */
+    ZipInput getCopiedInput()
+    {
+        // Entries created from a plain file have their data at position 0, entries of a zip file never do.
+        if (zipInput == null || data != null || entryOut != null || dataPosition == 0) return null;
+        return zipInput;
+    }
+
+    // The position of the entry in its input for INPUT_ORDER.
+    private long getInputOffset() {
+        return (getCopiedInput() != null) ? localHeaderOffset : Long.MAX_VALUE;
+    }
+
+    /** Read the (possibly compressed) data of an entry copied from a zip file, see getCopiedInput(). */
+    byte[] readRawData() throws IOException
+    {
+        if (compressedSize > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException(String.format("%s is too large (%d bytes) to be read into an array", filename, compressedSize));
         }
-        else {
+        if (dataPosition < 0) readLocalHeader();
+        ByteBuffer raw = ByteBuffer.allocate( (int)compressedSize);
+        zipInput.readFully( dataPosition, raw);
+        return raw.array();
+    }
 
-            if (debug) log.debug(String.format("Seeking to position 0x%08x", dataPosition));
-            zipInput.seek( dataPosition);
-            
-            int bufferSize = Math.min( compressedSize, 8096);
-            byte[] buffer = new byte[bufferSize];
+    /** Returns a stream of the entry's content, given its data as returned by readRawData(). */
+    InputStream getRawDataInputStream( byte[] rawData)
+    {
+        InputStream rawis = new ByteArrayInputStream( rawData);
+        if (compression == 0) return rawis;
+        // The extra dummy byte for the nowrap Inflater, as in getInputStream( OutputStream).
+        return CodecPool.inflate( new SequenceInputStream( rawis, new ByteArrayInputStream( new byte[1])));
+    }
+
+    /** Write the (possibly compressed) data to the output, after the local header has been written with writeLocalHeader(). */
+    void writeData( ZipOutput output) throws IOException
+    {
+        if (data != null) data.writeTo( output, null);
+        else output.writeBytes( zipInput, dataPosition, compressedSize);
+    }
+
+    /** Write the (possibly compressed) data to the channel at the given position, after the local
+     *  header has been written with writeLocalHeader().  Positional writes leave the channel's
+     *  position alone, so this is safe to call for several entries of one file at once.
+     */
+    void writeData( FileChannel channel, long position) throws IOException
+    {
+        if (log.isDebugEnabled()) log.debug(String.format("Writing %d bytes of %s at 0x%08x", compressedSize, filename, position));
+
+        if (data == null) {
+            ZipOutput.copy( zipInput.source, dataPosition, compressedSize, channel, position);
+            return;
+        }
+
+        InputStream in = data.getInputStream();
+        byte[] buffer = CodecPool.getBuffer();
+        try {
             long totalCount = 0;
-            
             while (totalCount != compressedSize) {
-                int numRead = zipInput.in.read( buffer, 0, (int)Math.min( compressedSize -  totalCount, bufferSize));  
-                if (numRead > 0) {
-                    output.writeBytes(buffer, 0, numRead);
-                    if (debug) log.debug(String.format("Wrote %d bytes", numRead));
-                    totalCount += numRead;
+                int numRead = in.read( buffer, 0, (int)Math.min( compressedSize - totalCount, buffer.length));
+                if (numRead <= 0) {
+                    throw new IllegalStateException(String.format("EOF reached while copying %s with %d bytes left to go", filename, compressedSize - totalCount));
                 }
-                else throw new IllegalStateException(String.format("EOF reached while copying %s with %d bytes left to go", filename, compressedSize -  totalCount));
+                ByteBuffer chunk = ByteBuffer.wrap( buffer, 0, numRead);
+                while (chunk.hasRemaining()) position += channel.write( chunk, position);
+                totalCount += numRead;
             }
         }
-    }		
-    
+        finally {
+            CodecPool.release( buffer);
+        }
+    }
+
     public static ZioEntry read(ZipInput input) throws IOException
     {
 
@@ -368,22 +541,22 @@ public class ZioEntry implements Cloneable {
         if (debug) log.debug(String.format("CRC-32: 0x%04x", crc32));
 
         // 18   4   Compressed size
-        compressedSize = input.readInt();
+        compressedSize = input.readInt() & 0xFFFFFFFFL;
         if (debug) log.debug(String.format("Compressed size: 0x%04x", compressedSize));
 
         // 22   4   Uncompressed size
-        size = input.readInt();
+        size = input.readInt() & 0xFFFFFFFFL;
         if (debug) log.debug(String.format("Size: 0x%04x", size));
 
         // 26   2   File name length (n)
-        short fileNameLen = input.readShort();
+        int fileNameLen = input.readShort() & 0xFFFF;
         if (debug) log.debug(String.format("File name length: 0x%04x", fileNameLen));
 
         // 28   2   Extra field length (m)
-        short extraLen = input.readShort();
+        int extraLen = input.readShort() & 0xFFFF;
         if (debug) log.debug(String.format("Extra length: 0x%04x", extraLen));
 
-        short fileCommentLen = input.readShort();
+        int fileCommentLen = input.readShort() & 0xFFFF;
         if (debug) log.debug(String.format("File comment length: 0x%04x", fileCommentLen));
 
         diskNumberStart = input.readShort();
@@ -395,14 +568,16 @@ public class ZioEntry implements Cloneable {
         externalAttributes = input.readInt();
         if (debug) log.debug(String.format("External attributes: 0x%08x", externalAttributes));
 
-        localHeaderOffset = input.readInt();
+        localHeaderOffset = input.readInt() & 0xFFFFFFFFL;
         if (debug) log.debug(String.format("Local header offset: 0x%08x", localHeaderOffset));
 
         // 30   n   File name      
-        filename = input.readString(fileNameLen);
+        filenameBytes = input.readBytes( fileNameLen);
+        filename = new String( filenameBytes);
         if (debug) log.debug("Filename: " + filename);
 
         extraData = input.readBytes( extraLen);
+        readZip64Extra();
 
         fileComment = input.readString( fileCommentLen);
         if (debug) log.debug("File comment: " + fileComment);
@@ -418,21 +593,158 @@ public class ZioEntry implements Cloneable {
 
     }
 
+    /** Write a local header for data that is streamed after it, see ZipOutput.openEntry().  The data
+     *  is deflated, and its CRC and sizes follow it in a data descriptor.
+     */
+    void writeStreamedHeader( ZipOutput output) throws IOException
+    {
+        release();
+        entryOut = null;
+        zipInput = null;
+        dataPosition = -1;
+        numAlignBytes = 0;
+        compression = 8;
+        crc32 = 0;
+        compressedSize = 0;
+        size = 0;
+        generalPurposeBits = (short)((generalPurposeBits & 0x0800) | 0x0008);
+
+        localHeaderOffset = output.getFilePointer();
+        if (log.isDebugEnabled()) {
+            log.debug( String.format("Writing streamed local header at 0x%08x - %s", localHeaderOffset, filename));
+        }
+
+        output.writeInt( 0x04034b50);
+        output.writeShort( versionRequired);
+        output.writeShort( generalPurposeBits);
+        output.writeShort( compression);
+        output.writeShort( modificationTime);
+        output.writeShort( modificationDate);
+        output.writeInt( 0); // CRC-32 and sizes, in the data descriptor
+        output.writeInt( 0);
+        output.writeInt( 0);
+        byte[] filenameBytes = getFilenameBytes();
+        output.writeShort( (short)filenameBytes.length);
+        output.writeShort( (short)extraData.length);
+        output.writeBytes( filenameBytes);
+        output.writeBytes( extraData);
+    }
+
+    /** Write the data descriptor after streamed data, and keep its values for the central directory. */
+    void writeDataDescriptor( ZipOutput output, int crc32, long compressedSize, long size) throws IOException
+    {
+        this.crc32 = crc32;
+        this.compressedSize = compressedSize;
+        this.size = size;
+
+        output.writeInt( 0x08074b50);
+        output.writeInt( crc32);
+        // Same as java.util.zip, the sizes take 8 bytes each only when one of them doesn't fit in 4.
+        if (compressedSize >= ZIP64_LIMIT || size >= ZIP64_LIMIT) {
+            output.writeLong( compressedSize);
+            output.writeLong( size);
+        }
+        else {
+            output.writeInt( (int)compressedSize);
+            output.writeInt( (int)size);
+        }
+    }
+
+    /** Read a local header, following its signature, from a zip stream.  The entry's data comes next in the stream. */
+    static ZioEntry readLocal( ZipStreamInput input) throws IOException
+    {
+        ZioEntry entry = new ZioEntry( (ZipInput)null);
+        entry.doReadLocal( input);
+        return entry;
+    }
+
+    private void doReadLocal( ZipStreamInput input) throws IOException
+    {
+        boolean debug = log.isDebugEnabled();
+
+        long headerPosition = input.getPosition() - 4;
+        if (debug) log.debug(String.format("Local header at stream pos=0x%08x", headerPosition));
+
+        // 4    2   Version needed to extract (minimum)
+        versionRequired = input.readShort();
+        versionMadeBy = versionRequired;
+
+        // 6    2   General purpose bit flag
+        generalPurposeBits = input.readShort();
+        if (debug) log.debug(String.format("General purpose bits: 0x%04x", generalPurposeBits));
+        if ((generalPurposeBits & 0xF7F1) != 0x0000) {
+            throw new IllegalStateException("Can't handle general purpose bits == "+String.format("0x%04x",generalPurposeBits));
+        }
+
+        // 8    2   Compression method
+        compression = input.readShort();
+
+        // 10   2   File last modification time
+        modificationTime = input.readShort();
+
+        // 12   2   File last modification date
+        modificationDate = input.readShort();
+
+        // 14   4   CRC-32, 18 4 Compressed size, 22 4 Uncompressed size (zero if bit 3 is set)
+        crc32 = input.readInt();
+        compressedSize = input.readInt() & 0xFFFFFFFFL;
+        size = input.readInt() & 0xFFFFFFFFL;
+        boolean zip64 = compressedSize == ZIP64_LIMIT || size == ZIP64_LIMIT;
+
+        // 26   2   File name length (n), 28 2 Extra field length (m)
+        int fileNameLen = input.readShort() & 0xFFFF;
+        int extraLen = input.readShort() & 0xFFFF;
+
+        filenameBytes = input.readBytes( fileNameLen);
+        filename = new String( filenameBytes);
+        if (debug) log.debug("Filename: " + filename);
+
+        extraData = input.readBytes( extraLen);
+        readZip64Extra();
+        localHeaderOffset = headerPosition;
+        fileComment = "";
+
+        if ((generalPurposeBits & 0x0008) != 0) input.expectDataDescriptor( zip64);
+        generalPurposeBits = (short)(generalPurposeBits & 0x0800); // Don't write a data descriptor, preserve UTF-8 encoded filename bit
+    }
+
+    /** Use data read from a zip stream.  The data is as it was stored, i.e., compressed unless the compression is 0. */
+    void setStreamData( EntryBuffer data, int crc32, long compressedSize, long size)
+    {
+        release();
+        this.data = data;
+        this.crc32 = crc32;
+        this.compressedSize = compressedSize;
+        this.size = size;
+
+        // Don't write zero-length entries with compression.
+        if (size == 0) {
+            data.release();
+            this.data = new EntryBuffer();
+            this.compressedSize = 0;
+            this.compression = 0;
+            this.crc32 = 0;
+        }
+    }
+
     /** Returns the entry's data. */
     public byte[] getData() throws IOException
     {
-        if (data != null) return data;
-        
-        byte[] tmpdata = new byte[size];
+        closeEntryOut();
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException(String.format("%s is too large (%d bytes) to be returned as an array", filename, size));
+        }
+        byte[] tmpdata = new byte[(int)size];
         
         InputStream din = getInputStream();
         int count = 0;
         
         while (count != size) {
-            int numRead = din.read( tmpdata, count, size-count);
+            int numRead = din.read( tmpdata, count, (int)size-count);
             if (numRead < 0) throw new IllegalStateException(String.format("Read failed, expecting %d bytes, got %d instead", size, count));
             count += numRead;
         }
+        din.close();
         return tmpdata;
     }
 
@@ -444,22 +756,20 @@ public class ZioEntry implements Cloneable {
     // Returns an input stream for reading the entry's data. 
     public InputStream getInputStream(OutputStream monitorStream) throws IOException {
         
-        if (entryOut != null) {
-            entryOut.close();
-            size = entryOut.getSize();
-            data = ((ByteArrayOutputStream)entryOut.getWrappedStream()).toByteArray();
-            compressedSize = data.length;
-            crc32 = entryOut.getCRC();
-            entryOut = null;
-            InputStream rawis = new ByteArrayInputStream( data);
+        closeEntryOut();
+        if (data != null) {
+            InputStream rawis = data.getInputStream();
             if (compression == 0) return rawis;
             else {
                 // Hacky, inflate using a sequence of input streams that returns 1 byte more than the actual length of the data.  
                 // This extra dummy byte is required by InflaterInputStream when the data doesn't have the header and crc fields (as it is in zip files). 
-                return new InflaterInputStream( new SequenceInputStream(rawis, new ByteArrayInputStream(new byte[1])), new Inflater( true));
+                return CodecPool.inflate( new SequenceInputStream(rawis, new ByteArrayInputStream(new byte[1])));
             }
         }
-        
+        if (zipInput == null) {
+            throw new IllegalStateException( filename + " has no data to read, e.g., its buffered data was released");
+        }
+
         ZioEntryInputStream dataStream;
         dataStream = new ZioEntryInputStream(this);
         if (monitorStream != null) dataStream.setMonitorStream( monitorStream);
@@ -468,7 +778,7 @@ public class ZioEntry implements Cloneable {
             // an extra "dummy" byte as input. This is required by the ZLIB native library 
             // in order to support certain optimizations.
             dataStream.setReturnDummyByte(true);
-            return new InflaterInputStream( dataStream, new Inflater( true));
+            return CodecPool.inflate( dataStream);
         }
         else return dataStream;
     }
@@ -476,40 +786,121 @@ public class ZioEntry implements Cloneable {
     // Returns an output stream for writing an entry's data.
     public OutputStream getOutputStream() 
     {
-        entryOut = new ZioEntryOutputStream( compression, new ByteArrayOutputStream());
+        release();
+        entryOut = new ZioEntryOutputStream( filename, compressionPolicy, compression, new EntryBuffer(), deflatePool);
         return entryOut;
     }
 
+    // Finish the data written to the output stream, if any, and keep it for writing the entry.
+    private void closeEntryOut() throws IOException
+    {
+        if (entryOut == null) return;
+        entryOut.close();
+        size = entryOut.getSize();
+        data = (EntryBuffer)entryOut.getWrappedStream();
+        compressedSize = data.size();
+        crc32 = entryOut.getCRC();
+        compression = (short)entryOut.getCompression();
+        if (entryOut.getPolicy() != null) {
+            entryOut.getPolicy().record( entryOut.getLevel(), size, compressedSize, entryOut.getCompressionNanos());
+        }
+        entryOut = null;
+    }
+
+    /** Free the buffered data of a new entry, e.g., after it has been written and won't be read again. */
+    public void release()
+    {
+        if (data != null) data.release();
+        data = null;
+    }
+
 
     public void write( ZipOutput output) throws IOException {
         boolean debug = log.isDebugEnabled();
 
+        // Only the values that don't fit in the header go in the ZIP64 extra field.
+        byte[] zip64Extra = getZip64Extra( size >= ZIP64_LIMIT, compressedSize >= ZIP64_LIMIT, localHeaderOffset >= ZIP64_LIMIT);
+        boolean zip64 = zip64Extra.length > 0;
 
         output.writeInt( 0x02014b50);
         output.writeShort( versionMadeBy);
-        output.writeShort( versionRequired);
+        output.writeShort( zip64 ? (short)Math.max( versionRequired, 45) : versionRequired);
         output.writeShort( generalPurposeBits);
         output.writeShort( compression);
         output.writeShort( modificationTime);
         output.writeShort( modificationDate);
         output.writeInt( crc32);
-        output.writeInt( compressedSize);
-        output.writeInt( size);
-        output.writeShort( (short)filename.length());
-        output.writeShort( (short)(extraData.length + numAlignBytes));
+        output.writeInt( (int)Math.min( compressedSize, ZIP64_LIMIT));
+        output.writeInt( (int)Math.min( size, ZIP64_LIMIT));
+        byte[] filenameBytes = getFilenameBytes();
+        output.writeShort( (short)filenameBytes.length);
+        output.writeShort( (short)(extraData.length + zip64Extra.length + numAlignBytes));
         output.writeShort( (short)fileComment.length());
         output.writeShort( diskNumberStart);
         output.writeShort( internalAttributes);
         output.writeInt( externalAttributes);
-        output.writeInt( localHeaderOffset);
+        output.writeInt( (int)Math.min( localHeaderOffset, ZIP64_LIMIT));
         
-        output.writeString( filename);
+        output.writeBytes( filenameBytes);
         output.writeBytes( extraData);
-        if (numAlignBytes > 0) output.writeBytes( alignBytes, 0, numAlignBytes);
+        output.writeBytes( zip64Extra);
+        if (numAlignBytes > 0) output.writeBytes( new byte[numAlignBytes]);
         output.writeString( fileComment);
 
     }
 
+    /** Parse the ZIP64 extended information extra field, if present, and remove it from the 
+     *  extra data.  A new one is generated as needed when the entry is written.
+     */
+    private void readZip64Extra()
+    {
+        ByteBuffer extra = ByteBuffer.wrap( extraData);
+        extra.order( ByteOrder.LITTLE_ENDIAN);
+
+        while (extra.remaining() >= 4) {
+            int start = extra.position();
+            short id = extra.getShort();
+            int length = extra.getShort() & 0xFFFF;
+            if (length > extra.remaining()) return;
+
+            int end = extra.position() + length;
+            if (id != ZIP64_EXTRA_ID) {
+                extra.position( end);
+                continue;
+            }
+
+            // Each value is present, in this order, only if the corresponding header field is saturated.
+            if (size == ZIP64_LIMIT && extra.position() + 8 <= end) size = extra.getLong();
+            if (compressedSize == ZIP64_LIMIT && extra.position() + 8 <= end) compressedSize = extra.getLong();
+            if (localHeaderOffset == ZIP64_LIMIT && extra.position() + 8 <= end) localHeaderOffset = extra.getLong();
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("ZIP64 size: %d, compressed size: %d, local header offset: 0x%08x", size, compressedSize, localHeaderOffset));
+            }
+
+            byte[] stripped = new byte[extraData.length - (end - start)];
+            System.arraycopy( extraData, 0, stripped, 0, start);
+            System.arraycopy( extraData, end, stripped, start, extraData.length - end);
+            extraData = stripped;
+            return;
+        }
+    }
+
+    /** Returns a ZIP64 extended information extra field containing the selected values, or an empty array if none are selected. */
+    private byte[] getZip64Extra( boolean includeSize, boolean includeCompressedSize, boolean includeOffset)
+    {
+        int length = (includeSize ? 8 : 0) + (includeCompressedSize ? 8 : 0) + (includeOffset ? 8 : 0);
+        if (length == 0) return new byte[0];
+
+        ByteBuffer extra = ByteBuffer.allocate( 4 + length);
+        extra.order( ByteOrder.LITTLE_ENDIAN);
+        extra.putShort( ZIP64_EXTRA_ID);
+        extra.putShort( (short)length);
+        if (includeSize) extra.putLong( size);
+        if (includeCompressedSize) extra.putLong( compressedSize);
+        if (includeOffset) extra.putLong( localHeaderOffset);
+        return extra.array();
+    }
+
     /*
      * Returns timetamp in Java format
      */
@@ -544,6 +935,12 @@ public class ZioEntry implements Cloneable {
         modificationTime = (short)(dtime & 0xFFFF);
     }
 
+    // The filename as it is written to the headers.  Names read from a zip file keep their original bytes.
+    private byte[] getFilenameBytes() {
+        if (filenameBytes == null) filenameBytes = filename.getBytes();
+        return filenameBytes;
+    }
+
     public boolean isDirectory() {
         return filename.endsWith("/");
     }
@@ -554,8 +951,40 @@ public class ZioEntry implements Cloneable {
     
     public void setName( String filename) {
         this.filename = filename;
+        this.filenameBytes = null;
     }
     
+    /** Pad the local header's extra field so that the entry's data ends on a multiple of the given
+     *  number of bytes.  Entries written afterwards then keep the alignment they would have had if
+     *  they were written at offset zero.  Use 0 (the default) to only zipalign Stored entries.
+     */
+    public void setEndAlignment( int endAlignment) {
+        this.endAlignment = endAlignment;
+    }
+
+    ForkJoinPool getDeflatePool() {
+        return deflatePool;
+    }
+
+    /** Compress the data written to the output stream on the threads of this pool, see 
+     *  ParallelDeflaterOutputStream.  Must be called before getOutputStream().  Use null (the
+     *  default) to compress on the calling thread.
+     */
+    public void setDeflatePool( ForkJoinPool deflatePool) {
+        this.deflatePool = deflatePool;
+    }
+
+    /** Let the policy choose how the data written to the output stream is compressed.  Must be 
+     *  called before getOutputStream().  It has no effect if the compression is set to 0 (stored).
+     */
+    public void setCompressionPolicy( CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    void setLocalHeaderOffset( long localHeaderOffset) {
+        this.localHeaderOffset = localHeaderOffset;
+    }
+
     /** Use 0 (STORED), or 8 (DEFLATE). */
     public void setCompression( int compression) {
         this.compression = (short)compression;
@@ -581,11 +1010,11 @@ public class ZioEntry implements Cloneable {
         return crc32;
     }
 
-    public int getCompressedSize() {
+    public long getCompressedSize() {
         return compressedSize;
     }
 
-    public int getSize() {
+    public long getSize() {
         return size;
     }
 
@@ -609,7 +1038,7 @@ public class ZioEntry implements Cloneable {
         return externalAttributes;
     }
 
-    public int getLocalHeaderOffset() {
+    public long getLocalHeaderOffset() {
         return localHeaderOffset;
     }
 
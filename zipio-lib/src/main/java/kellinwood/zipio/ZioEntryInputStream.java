@@ -18,16 +18,19 @@ package kellinwood.zipio;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 
 import kellinwood.logging.Logger;
 
-/** Input stream used to read just the data from a zip file entry. */
+/** Input stream used to read just the data from a zip file entry.  The data is read with 
+ *  positional reads, so any number of streams may read entries of the same ZipInput 
+ *  concurrently from different threads.
+ */
 public class ZioEntryInputStream extends InputStream {
 
-    RandomAccessFile raf;
-    int size;
-    int offset;
+    ZipInput input;
+    long dataPosition;
+    long size;
+    long offset;
     Logger log;
     boolean debug;
     boolean returnDummyByte = false;
@@ -39,18 +42,13 @@ public class ZioEntryInputStream extends InputStream {
         debug = log.isDebugEnabled();
         offset = 0;
         size = entry.getCompressedSize();
-        raf = entry.getZipInput().in;
-        long dpos = entry.getDataPosition();
-        if (dpos >= 0) {
-            if (debug) log.debug(String.format("Seeking to %d", entry.getDataPosition()));
-            raf.seek( entry.getDataPosition());
-        }
-        else {
-            // seeks to, then reads, the local header, causing the 
-            // file pointer to be positioned at the start of the data.
+        input = entry.getZipInput();
+        if (entry.getDataPosition() < 0) {
+            // reads the local header to find the start of the data.
             entry.readLocalHeader();
         }
-        
+        dataPosition = entry.getDataPosition();
+        if (debug) log.debug(String.format("Data position %d", dataPosition));
     }
 
     public void setReturnDummyByte( boolean returnExtraByte) {
@@ -73,7 +71,7 @@ public class ZioEntryInputStream extends InputStream {
 
     @Override
     public int available() throws IOException {
-        int available = size - offset;
+        int available = (int)Math.min( size - offset, Integer.MAX_VALUE);
         if (debug) log.debug(String.format("Available = %d", available));
         if (available == 0 && returnDummyByte) return 1;
         else return available;
@@ -88,14 +86,16 @@ public class ZioEntryInputStream extends InputStream {
             }
             else return -1;
         }
-        int b = raf.read();
-        if (b >= 0) {
-            if (monitor != null) monitor.write(b);
-            if (debug) log.debug("Read 1 byte");
-            offset += 1;
+        byte[] b = new byte[1];
+        int numRead = input.read( dataPosition + offset, b, 0, 1);
+        if (numRead <= 0) {
+            if (debug) log.debug("Read 0 bytes");
+            return -1;
         }
-        else if (debug) log.debug("Read 0 bytes");        
-        return b;
+        if (monitor != null) monitor.write(b[0]);
+        if (debug) log.debug("Read 1 byte");
+        offset += 1;
+        return b[0] & 0xFF;
     }
 
     @Override
@@ -113,7 +113,7 @@ public class ZioEntryInputStream extends InputStream {
             else return -1;
         }        
         int numToRead = Math.min( len, available());
-        int numRead = raf.read(b, off, numToRead);
+        int numRead = input.read( dataPosition + offset, b, off, numToRead);
         if (numRead > 0) {
             if (monitor != null) monitor.write(b, off, numRead);
             offset += numRead;
@@ -129,11 +129,9 @@ public class ZioEntryInputStream extends InputStream {
 
     @Override
     public long skip(long n) throws IOException {
-        long numToSkip = Math.min( n, available());
-        raf.seek( raf.getFilePointer() + numToSkip);
+        long numToSkip = Math.min( n, size - offset);
+        offset += numToSkip;
         if (debug) log.debug(String.format("Skipped %d bytes", numToSkip));                
         return numToSkip;
     }
 }
-
-
@@ -17,58 +17,164 @@ package kellinwood.zipio;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.CRC32;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 
 public class ZioEntryOutputStream extends OutputStream {
-    int size = 0;  // tracks uncompressed size of data
+    long size = 0;  // tracks uncompressed size of data
     CRC32 crc = new CRC32();
     int crcValue = 0;
     OutputStream wrapped;
     OutputStream downstream;
-    
+    int compression;
+    int level = Deflater.BEST_COMPRESSION;
+    ForkJoinPool deflatePool;
+    Deflater deflater = null;
+
+    // With a compression policy, the first bytes are held in the sample until the level is chosen.
+    String name;
+    CompressionPolicy policy;
+    byte[] sample = null;
+    int sampleLength = 0;
+    long compressionNanos = 0;
+
     public ZioEntryOutputStream( int compression, OutputStream wrapped) 
+    {
+        this( compression, wrapped, null);
+    }
+
+    /** If deflatePool is not null, compressed data is deflated in parallel on its threads. */
+    public ZioEntryOutputStream( int compression, OutputStream wrapped, ForkJoinPool deflatePool) 
     {
         this.wrapped = wrapped;
-        if (compression != 0)
-            downstream = new DeflaterOutputStream( wrapped, new Deflater( Deflater.BEST_COMPRESSION, true));
-        else downstream = wrapped;
+        this.compression = compression;
+        this.deflatePool = deflatePool;
+        createDownstream();
     }
-    
+
+    /** The compression of the entry's data is chosen by the policy, unless compression is 0 (stored). */
+    public ZioEntryOutputStream( String name, CompressionPolicy policy, int compression, OutputStream wrapped, ForkJoinPool deflatePool)
+    {
+        this.wrapped = wrapped;
+        this.compression = compression;
+        this.deflatePool = deflatePool;
+        if (compression == 0 || policy == null) {
+            createDownstream();
+            return;
+        }
+        this.name = name;
+        this.policy = policy;
+        sample = new byte[CompressionPolicy.SAMPLE_SIZE];
+    }
+
+    private void createDownstream()
+    {
+        if (compression == 0)
+            downstream = wrapped;
+        else if (deflatePool != null)
+            downstream = new ParallelDeflaterOutputStream( wrapped, level, deflatePool);
+        else {
+            deflater = CodecPool.getDeflater( level);
+            downstream = new DeflaterOutputStream( wrapped, deflater);
+        }
+    }
+
+    // Ask the policy how to compress the data, then pass on the sample.
+    private void choose() throws IOException
+    {
+        level = policy.getLevel( name, sample, sampleLength);
+        if (level == CompressionPolicy.STORED) compression = 0;
+        createDownstream();
+        send( sample, 0, sampleLength);
+        sample = null;
+    }
+
+    private void send( byte[] b, int off, int len) throws IOException
+    {
+        if (policy == null) {
+            downstream.write( b, off, len);
+            return;
+        }
+        long start = System.nanoTime();
+        downstream.write( b, off, len);
+        compressionNanos += System.nanoTime() - start;
+    }
+
+    private void sendData( byte[] b, int off, int len) throws IOException
+    {
+        if (sample != null) {
+            int count = Math.min( len, sample.length - sampleLength);
+            System.arraycopy( b, off, sample, sampleLength, count);
+            sampleLength += count;
+            off += count;
+            len -= count;
+            if (sampleLength < sample.length) return;
+            choose();
+        }
+        if (len > 0) send( b, off, len);
+    }
+
     public void close() throws IOException {
-        downstream.flush();
+        if (sample != null) choose();
+        long start = System.nanoTime();
         downstream.close();
+        compressionNanos += System.nanoTime() - start;
+        if (deflater != null) {
+            CodecPool.release( deflater);
+            deflater = null;
+        }
         crcValue = (int)crc.getValue();
     }
 
     public int getCRC() {
         return crcValue;
     }
-    
+
+    /** Returns the compression method used, 0 (stored) or 8 (deflate). */
+    public int getCompression() {
+        return compression;
+    }
+
+    /** Returns the deflate level used, or CompressionPolicy.STORED. */
+    public int getLevel() {
+        return (compression == 0) ? CompressionPolicy.STORED : level;
+    }
+
+    /** Returns the time spent writing to the compressor, if a compression policy is in use. */
+    public long getCompressionNanos() {
+        return compressionNanos;
+    }
+
+    public CompressionPolicy getPolicy() {
+        return policy;
+    }
+
     public void flush() throws IOException {
-        downstream.flush();
+        if (downstream != null) downstream.flush();
     }
 
     public void write(byte[] b) throws IOException {
-        downstream.write(b);
+        sendData( b, 0, b.length);
         crc.update(b);
         size += b.length;
     }
 
     public void write(byte[] b, int off, int len) throws IOException {
-        downstream.write( b, off, len);
+        sendData( b, off, len);
         crc.update( b, off, len);
         size += len;
     }
 
     public void write(int b) throws IOException {
-        downstream.write( b);
+        if (sample != null) sendData( new byte[] { (byte)b }, 0, 1);
+        else downstream.write( b);
         crc.update( b);
         size += 1;
     }
 
-    public int getSize() {
+    public long getSize() {
         return size;
     }
 
@@ -15,42 +15,79 @@
  */
 package kellinwood.zipio;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.jar.Manifest;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import kellinwood.logging.Logger;
 
 /**
+ * Reads the central directory of a zip file and provides access to its entries.
  *
+ * Header fields are decoded from a little-endian ByteBuffer rather than pulled one byte at a
+ * time from the file.  The whole central directory is read (or memory-mapped, when it is at
+ * least MAP_THRESHOLD bytes long) in a single operation before it is parsed.  Other header reads,
+ * e.g., local headers, are served from a small window that is refilled on demand with positional
+ * reads.
+ *
+ * The zip file is read from a ZipSource, so it may also be in memory (see ZipSource.of()) or in any
+ * SeekableByteChannel.  Sources that are already in memory are never copied, the directory is
+ * parsed in place.
  */
 public class ZipInput 
 {
 
     static Logger log = Logger.getLogger(ZipInput.class);
 
+    /** Central directories at least this large are memory-mapped instead of read onto the heap. */
+    public static final int MAP_THRESHOLD = 256 * 1024;
+
+    static final int WINDOW_SIZE = 8192;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
     public String inputFilename;
-    RandomAccessFile in = null;
+    ZipSource source;
     long fileLength;
     int scanIterations = 0;
 
+    // Holds the header bytes currently being decoded.  The logical file position is always
+    // bufferStart + buffer.position().
+    ByteBuffer buffer = EMPTY;
+    long bufferStart = 0;
+    ByteBuffer window = null;
+
     Map<String,ZioEntry> zioEntries = new LinkedHashMap<String,ZioEntry>();
+    // Used instead of zioEntries when the file is read with a compact index.
+    CentralDirectoryIndex index = null;
+    DirectoryTree directoryTree = null; // of the compact index, see getDirectoryTree()
     CentralEnd centralEnd;
+    long posEOCDR = -1;
     Manifest manifest;
 
     public ZipInput( String filename) throws IOException
     {
-        this.inputFilename = filename;
-        in = new RandomAccessFile( new File( inputFilename), "r");
-        fileLength = in.length();
+        this( ZipSource.open( new File( filename)), filename);
+    }
+
+    /** Read from the given source.  The name is only used in messages and returned by getFilename(). */
+    public ZipInput( ZipSource source, String name) throws IOException
+    {
+        this.inputFilename = name;
+        this.source = source;
+        fileLength = source.size();
     }
 
 
@@ -63,19 +100,161 @@ public class ZipInput
     }
     
     public static ZipInput read( String filename) throws IOException {
+        return read( filename, false);
+    }
+
+    /** Read the central directory.  If compact is true, the entries are kept in a CentralDirectoryIndex
+     *  instead of a ZioEntry per entry.  Each call to getEntry() then parses a new ZioEntry from the 
+     *  directory, and getEntries() returns a read-only view that does the same.
+     */
+    public static ZipInput read( String filename, boolean compact) throws IOException {
         ZipInput zipInput = new ZipInput( filename);
-        zipInput.doRead();
+        zipInput.doRead( compact);
+        return zipInput;
+    }
+
+    /** Read the central directory of a zip file held by the given source, e.g., in memory. */
+    public static ZipInput read( ZipSource source, String name, boolean compact) throws IOException {
+        ZipInput zipInput = new ZipInput( source, name);
+        zipInput.doRead( compact);
+        return zipInput;
+    }
+
+    /** Read the central directory into a compact index, using the index saved in the cache if it is
+     *  still valid.  Otherwise the index is built and saved for next time.
+     */
+    public static ZipInput read( String filename, IndexCache cache) throws IOException {
+        ZipInput zipInput = new ZipInput( filename);
+        if (!cache.load( zipInput)) {
+            zipInput.doRead( true);
+            cache.store( zipInput);
+        }
         return zipInput;
     }
     
     
     public ZioEntry getEntry( String filename) {
+        if (index != null) {
+            int n = index.indexOf( filename);
+            return (n < 0) ? null : getEntry( n);
+        }
         return zioEntries.get(filename);
     }
     
     public Map<String,ZioEntry> getEntries() {
+        if (index != null) return new IndexedEntries();
         return zioEntries;
     }
+
+    /** Returns the compact index, or null if the file was not read with one. */
+    public CentralDirectoryIndex getIndex() {
+        return index;
+    }
+
+    // Parse the entry at the given index position from the central directory.
+    synchronized ZioEntry getEntry( int n)
+    {
+        buffer = index.directory.duplicate();
+        buffer.order( ByteOrder.LITTLE_ENDIAN);
+        bufferStart = index.directoryOffset;
+        buffer.position( (int)(index.getRecordOffset( n) - bufferStart));
+        try {
+            return ZioEntry.read( this);
+        }
+        catch (IOException x) {
+            throw new IllegalStateException( String.format("Unable to read central directory entry %d of %s", n, inputFilename), x);
+        }
+    }
+
+    // Read-only map of the entries in the compact index, in central directory order.
+    class IndexedEntries extends AbstractMap<String,ZioEntry>
+    {
+        @Override
+        public ZioEntry get( Object key) {
+            return (key instanceof String) ? getEntry( (String)key) : null;
+        }
+
+        @Override
+        public boolean containsKey( Object key) {
+            return (key instanceof String) && index.indexOf( (String)key) >= 0;
+        }
+
+        @Override
+        public Set<Map.Entry<String,ZioEntry>> entrySet() {
+            return new AbstractSet<Map.Entry<String,ZioEntry>>() {
+                @Override
+                public int size() {
+                    return index.currentSize();
+                }
+
+                @Override
+                public Iterator<Map.Entry<String,ZioEntry>> iterator() {
+                    return new Iterator<Map.Entry<String,ZioEntry>>() {
+                        int next = advance( 0);
+
+                        private int advance( int n) {
+                            while (n < index.size() && !index.isCurrent( n)) n++;
+                            return n;
+                        }
+
+                        public boolean hasNext() {
+                            return next < index.size();
+                        }
+
+                        public Map.Entry<String,ZioEntry> next() {
+                            if (!hasNext()) throw new NoSuchElementException();
+                            IndexedEntry entry = new IndexedEntry( next);
+                            next = advance( next + 1);
+                            return entry;
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    // Map entry that only parses its ZioEntry if the value is requested, so that iterating over the 
+    // names is cheap.
+    class IndexedEntry implements Map.Entry<String,ZioEntry>
+    {
+        final int n;
+        final String name;
+        ZioEntry entry = null;
+
+        IndexedEntry( int n) {
+            this.n = n;
+            this.name = index.getName( n);
+        }
+
+        public String getKey() {
+            return name;
+        }
+
+        public ZioEntry getValue() {
+            if (entry == null) entry = getEntry( n);
+            return entry;
+        }
+
+        public ZioEntry setValue( ZioEntry value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals( Object o) {
+            if (!(o instanceof Map.Entry)) return false;
+            Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+            return name.equals( e.getKey()) && getValue().equals( e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() ^ getValue().hashCode();
+        }
+    }
     
     /** Returns the names of immediate children in the directory with the given name.
      *  The path value must end with a "/" character.  Use a value of "/" 
@@ -83,26 +262,39 @@ public class ZipInput
      */
     public Collection<String> list(String path) 
     {
-        if (!path.endsWith("/")) throw new IllegalArgumentException("Invalid path -- does not end with '/'");
-        
-        if (path.startsWith("/")) path = path.substring(1);
-       
-        Pattern p = Pattern.compile( String.format("^%s([^/]+/?).*", path));
-        
-        Set<String> names = new TreeSet<String>();
-        
-        for (String name : zioEntries.keySet()) {
-            Matcher m = p.matcher(name);
-            if (m.matches()) names.add(m.group(1));
+        return getDirectoryTree().list( path);
+    }
+
+    /** Returns the tree of entry names.  With a compact index, whose entries can't change, the
+     *  tree is built the first time this (or list()) is called and kept.  Otherwise it is built from
+     *  the current entries on each call, so changes made through getEntries() are reflected.
+     */
+    public synchronized DirectoryTree getDirectoryTree()
+    {
+        if (index == null) {
+            DirectoryTree tree = new DirectoryTree();
+            for (Map.Entry<String,ZioEntry> entry : zioEntries.entrySet()) {
+                tree.add( entry.getKey(), entry.getValue().getSize(), entry.getValue().getCompressedSize());
+            }
+            return tree;
         }
-        return names;
+        if (directoryTree == null) {
+            DirectoryTree tree = new DirectoryTree();
+            for (int n = 0; n < index.size(); n++) {
+                if (index.isCurrent( n)) tree.add( index.getName( n), index.getSize( n), index.getCompressedSize( n));
+            }
+            directoryTree = tree;
+        }
+        return directoryTree;
     }
     
     public Manifest getManifest() throws IOException {
         if (manifest == null) {
-            ZioEntry e = zioEntries.get("META-INF/MANIFEST.MF");
+            ZioEntry e = getEntry("META-INF/MANIFEST.MF");
             if (e != null) {
-                manifest = new Manifest( e.getInputStream());
+                InputStream in = e.getInputStream();
+                manifest = new Manifest( in);
+                in.close();
             }
         }
         return manifest; 
@@ -119,9 +311,7 @@ public class ZipInput
 
         byte[] scanBuf = new byte[scanSize];
 
-        in.seek( fileLength - scanSize);
-
-        in.readFully( scanBuf);
+        readFully( fileLength - scanSize, ByteBuffer.wrap( scanBuf));
 
         for (int i = scanSize - 22; i >= 0; i--) {
             scanIterations += 1;
@@ -134,12 +324,12 @@ public class ZipInput
     }
                               
         
-    private void doRead()
+    private void doRead( boolean compact)
     {
         try {
 
-            long posEOCDR = scanForEOCDR( 256);
-            in.seek( posEOCDR);
+            posEOCDR = scanForEOCDR( 256);
+            seek( posEOCDR);
             centralEnd = CentralEnd.read( this);
 
             boolean debug = log.isDebugEnabled();
@@ -151,7 +341,14 @@ public class ZipInput
                 ZipListingHelper.listHeader( log);
             }
 
-            in.seek( centralEnd.centralStartOffset);            
+            loadCentralDirectory( centralEnd.centralStartOffset, centralEnd.centralDirectorySize);
+
+            // The index needs the whole directory in the buffer.
+            if (compact && bufferStart == centralEnd.centralStartOffset && buffer.limit() > 0) {
+                index = new CentralDirectoryIndex( buffer, bufferStart, centralEnd.totalCentralEntries);
+                if (debug) log.debug(String.format("Indexed %d entries", index.size()));
+                return;
+            }
 
             for (int i = 0; i < centralEnd.totalCentralEntries; i++) {
                 ZioEntry entry = ZioEntry.read(this);
@@ -165,60 +362,137 @@ public class ZipInput
         }    	
     }
 
+    /** Reads or maps the entire central directory so the entries can be decoded from memory. */
+    void loadCentralDirectory( long offset, long length) throws IOException
+    {
+        length = Math.min( length, fileLength - offset);
+        if (length > Integer.MAX_VALUE) {
+            // Too big for a single buffer, parse it through the window instead.
+            seek( offset);
+            return;
+        }
+        int size = (int)length;
+
+        // Sources in memory map any region for free, files are only mapped when it is worth the cost.
+        ByteBuffer mapped = null;
+        if (size >= MAP_THRESHOLD || source.getFileChannel() == null) mapped = source.map( offset, size);
+        if (mapped != null) {
+            buffer = mapped;
+        }
+        else {
+            buffer = ByteBuffer.allocate( size);
+            readFully( offset, buffer);
+            buffer.flip();
+        }
+        buffer.order( ByteOrder.LITTLE_ENDIAN);
+        bufferStart = offset;
+    }
+
+    /** Read from the given file position without using or moving the file pointer.  This 
+     *  is safe to call from multiple threads at once.
+     */
+    public int read( long position, byte[] b, int offset, int length) throws IOException {
+        return source.read( ByteBuffer.wrap( b, offset, length), position);
+    }
+
+    /** Fill the buffer from the source at the given position, without moving the file pointer. */
+    void readFully( long position, ByteBuffer dst) throws IOException
+    {
+        while (dst.hasRemaining()) {
+            int numRead = source.read( dst, position);
+            if (numRead < 0) throw new EOFException( String.format("EOF reached at pos=0x%08x, file=%s", position, inputFilename));
+            position += numRead;
+        }
+    }
+
+    // Make sure at least length bytes are available in the buffer at the current position.
+    private void ensure( int length) throws IOException
+    {
+        if (buffer.remaining() >= length) return;
+
+        long position = getFilePointer();
+        int fillSize = (int)Math.min( Math.max( length, WINDOW_SIZE), fileLength - position);
+        if (fillSize < length) throw new EOFException( String.format("EOF reached at pos=0x%08x, file=%s", position, inputFilename));
+
+        if (window == null || window.capacity() < fillSize) {
+            window = ByteBuffer.allocate( Math.max( fillSize, WINDOW_SIZE));
+            window.order( ByteOrder.LITTLE_ENDIAN);
+        }
+        window.clear();
+        window.limit( fillSize);
+        readFully( position, window);
+        window.flip();
+
+        buffer = window;
+        bufferStart = position;
+    }
+
     public void close() {
-        if (in != null) try { in.close(); } catch( Throwable t) {}
+        if (source != null) try { source.close(); } catch( Throwable t) {}
     }
 
     public long getFilePointer() throws IOException {
-        return in.getFilePointer(); 
+        return bufferStart + buffer.position(); 
     }
 
     public void seek( long position) throws IOException {
-        in.seek(position);
+        if (position >= bufferStart && position <= bufferStart + buffer.limit()) {
+            buffer.position( (int)(position - bufferStart));
+        }
+        else {
+            buffer = EMPTY;
+            bufferStart = position;
+        }
     }
 
     public byte readByte() throws IOException {
-        return in.readByte();
+        ensure( 1);
+        return buffer.get();
     }
     
     public int readInt() throws IOException{
-        int result = 0;
-        for (int i = 0; i < 4; i++) {
-            result |= (in.readUnsignedByte() << (8 * i));
-        }
-        return result;
+        ensure( 4);
+        return buffer.getInt();
+    }
+
+    public long readLong() throws IOException {
+        ensure( 8);
+        return buffer.getLong();
     }
 
     public short readShort() throws IOException {
-        short result = 0;
-        for (int i = 0; i < 2; i++) {
-            result |= (in.readUnsignedByte() << (8 * i));
-        }
-        return result;
+        ensure( 2);
+        return buffer.getShort();
     }
 
     public String readString( int length) throws IOException {
 
-        byte[] buffer = new byte[length];
-        for (int i = 0; i < length; i++) {
-            buffer[i] = in.readByte();
-        }
-        return new String(buffer);
+        return new String( readBytes( length));
     }
 
     public byte[] readBytes( int length) throws IOException {
 
-        byte[] buffer = new byte[length];
-        for (int i = 0; i < length; i++) {
-            buffer[i] = in.readByte();
-        }
-        return buffer;
+        byte[] result = new byte[length];
+        ensure( length);
+        buffer.get( result);
+        return result;
     }
 
     public int read( byte[] b, int offset, int length) throws IOException {
-        return in.read( b, offset, length);
+        if (buffer.hasRemaining()) {
+            int numRead = Math.min( length, buffer.remaining());
+            buffer.get( b, offset, numRead);
+            return numRead;
+        }
+        // Bulk data reads go straight to the source.
+        long position = getFilePointer();
+        int numRead = source.read( ByteBuffer.wrap( b, offset, length), position);
+        if (numRead > 0) {
+            buffer = EMPTY;
+            bufferStart = position + numRead;
+        }
+        return numRead;
     }
 
 }
 
-
@@ -38,7 +38,7 @@ public class ZipListingHelper
     public static void listEntry(Logger log, ZioEntry entry)
     {
         int ratio = 0;
-        if (entry.getSize() > 0) ratio = (100 * (entry.getSize() - entry.getCompressedSize())) / entry.getSize();
+        if (entry.getSize() > 0) ratio = (int)((100 * (entry.getSize() - entry.getCompressedSize())) / entry.getSize());
         log.debug(String.format("%8d  %6s %8d %4d%% %s  %08x  %s",
                                 entry.getSize(),
                                 entry.getCompression() == 0 ? "Stored" : "Defl:N",
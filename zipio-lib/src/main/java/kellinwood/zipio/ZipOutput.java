@@ -18,27 +18,68 @@ package kellinwood.zipio;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import kellinwood.logging.Logger;
 
 /**
+ * Writes entries and the central directory to a zip file.
  *
+ * Header fields are encoded into a reusable little-endian ByteBuffer (a direct one when the
+ * output is a file) that is flushed in BUFFER_SIZE chunks, so callers don't need to wrap the
+ * output stream in a BufferedOutputStream.
  */
 public class ZipOutput 
 {
 
     static Logger log = Logger.getLogger(ZipOutput.class);
 
+    static final int BUFFER_SIZE = 65536;
+
+    /** Approximate number of bytes written by each task of writeParallel(). */
+    public static final int PARALLEL_TASK_SIZE = 1024 * 1024;
+
     String outputFilename;
     OutputStream out = null;
-    int filePointer = 0;
+    long filePointer = 0;
+
+    // Set when the output is a file, so that raw entry data can be copied by the kernel via
+    // FileChannel.transferTo() instead of through a heap buffer, or when writing to a channel
+    // instead of a stream.  The channel's position matches the data written so far once the
+    // buffer has been flushed.
+    WritableByteChannel channel = null;
+
+    // Encoded data not yet written to out (or channel).
+    ByteBuffer buffer;
 
     List<ZioEntry> entriesWritten = new LinkedList<ZioEntry>();
     Set<String> namesWritten = new HashSet<String>();
+
+    // The entry being streamed by openEntry(), if any.
+    ZioEntry openEntry = null;
+
+    AlignmentPolicy alignmentPolicy = null;
+
+    // Writes full buffers on its own thread, if enabled by setWriteBehind().
+    WriteBehind writeBehind = null;
     
     public ZipOutput( String filename) throws IOException
     {
@@ -57,7 +98,10 @@ public class ZipOutput
     private void init( File ofile) throws IOException
     {
         if (ofile.exists()) ofile.delete();
-        out = new FileOutputStream( ofile);
+        FileOutputStream fos = new FileOutputStream( ofile);
+        out = fos;
+        channel = fos.getChannel();
+        allocateBuffer();
         if (log.isDebugEnabled()) ZipListingHelper.listHeader( log);
         
     }
@@ -65,16 +109,79 @@ public class ZipOutput
     public ZipOutput( OutputStream os) throws IOException
     {
         out = os;
+        if (os instanceof FileOutputStream) channel = ((FileOutputStream)os).getChannel();
+        allocateBuffer();
+    }
+
+    /** Write to the channel, e.g., a ByteArrayChannel to create the zip file in memory.  The channel
+     *  is closed by close().
+     */
+    public ZipOutput( WritableByteChannel channel) throws IOException
+    {
+        this.channel = channel;
+        allocateBuffer();
+    }
+
+    private void allocateBuffer()
+    {
+        buffer = newBuffer();
+    }
+
+    private ByteBuffer newBuffer()
+    {
+        // A file channel writes from a direct buffer without copying it, a stream needs the backing array.
+        ByteBuffer newBuffer = (channel instanceof FileChannel) ? ByteBuffer.allocateDirect( BUFFER_SIZE) : ByteBuffer.allocate( BUFFER_SIZE);
+        newBuffer.order( ByteOrder.LITTLE_ENDIAN);
+        return newBuffer;
     }
     
 
+    /** Align the data of stored entries as chosen by the policy, using alignment extra fields.  Use
+     *  null (the default) to zipalign stored entries to ZioEntry.STORED_ALIGNMENT with zero padding.
+     */
+    public void setAlignmentPolicy( AlignmentPolicy alignmentPolicy) {
+        this.alignmentPolicy = alignmentPolicy;
+    }
+
+    public AlignmentPolicy getAlignmentPolicy() {
+        return alignmentPolicy;
+    }
+
+    /** Write full buffers to the output on a separate thread, so that encoding and compressing the
+     *  following data overlaps with the write.  Up to maxPendingBuffers buffers of BUFFER_SIZE bytes
+     *  may be waiting to be written; when they are all in use the writing thread stalls until one has
+     *  been written.  Data copied by FileChannel.transferTo() and the positional writes of
+     *  writeParallel() wait for the pending buffers and are then done directly, as usual.  Use 0 (the
+     *  default) to write buffers on the calling thread.
+     */
+    public void setWriteBehind( int maxPendingBuffers) throws IOException
+    {
+        if (maxPendingBuffers < 0) throw new IllegalArgumentException( "Invalid number of buffers: " + maxPendingBuffers);
+        flush();
+        if (writeBehind != null) writeBehind.stop();
+        writeBehind = (maxPendingBuffers > 0) ? new WriteBehind( maxPendingBuffers) : null;
+    }
+
+    /** Returns the counters of the write-behind stage, or null if it is not enabled. */
+    public StageStatistics getWriteBehindStatistics() {
+        return (writeBehind == null) ? null : writeBehind.statistics;
+    }
+
     public void write( ZioEntry entry) throws IOException {
+        write( entry, null);
+    }
+
+    /** Write the entry, and also send its uncompressed content to the contentMonitor (if not null) 
+     *  as the data is copied.  This allows the content to be digested without reading it twice.
+     */
+    public void write( ZioEntry entry, OutputStream contentMonitor) throws IOException {
+        checkNoOpenEntry();
         String entryName = entry.getName();
         if (namesWritten.contains( entryName)) {
             log.warn("Skipping duplicate file in output: " + entryName);
             return;
         }
-        entry.writeLocalEntry( this);
+        entry.writeLocalEntry( this, contentMonitor);
         entriesWritten.add( entry);
         namesWritten.add( entryName);
         if (log.isDebugEnabled()) ZipListingHelper.listEntry( log, entry);
@@ -82,70 +189,761 @@ public class ZipOutput
     }
 
 
-    
+    /** Start an entry whose content is written to the returned stream and deflated straight to the 
+     *  output, so that its length doesn't need to be known and its data isn't buffered.  The local
+     *  header has general purpose bit 3 set, and the CRC and sizes are written in a data descriptor
+     *  after the data when the stream is closed.  The stream must be closed before writing another
+     *  entry.  Flushing the stream flushes the output, e.g., to send what has been compressed so far
+     *  over a socket.
+     */
+    public OutputStream openEntry( final ZioEntry entry) throws IOException
+    {
+        checkNoOpenEntry();
+        final String entryName = entry.getName();
+        if (namesWritten.contains( entryName)) {
+            throw new IllegalStateException("Duplicate file in output: " + entryName);
+        }
+
+        entry.writeStreamedHeader( this);
+        openEntry = entry;
+        final long dataStart = getFilePointer();
+
+        OutputStream data = new OutputStream() {
+            public void write( int b) throws IOException {
+                writeBytes( new byte[] { (byte)b });
+            }
+
+            public void write( byte[] b, int off, int len) throws IOException {
+                writeBytes( b, off, len);
+            }
+
+            public void flush() throws IOException {
+                ZipOutput.this.flush();
+                if (out != null) out.flush();
+            }
+        };
+
+        return new ZioEntryOutputStream( entry.getCompression(), data, entry.getDeflatePool()) {
+            boolean closed = false;
+
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                super.close();
+                entry.writeDataDescriptor( ZipOutput.this, getCRC(), getFilePointer() - dataStart, getSize());
+                entriesWritten.add( entry);
+                namesWritten.add( entryName);
+                openEntry = null;
+                if (log.isDebugEnabled()) ZipListingHelper.listEntry( log, entry);
+            }
+        };
+    }
+
+    /** Write the entries, filling in their data on the threads of the pool.  Since the size of each
+     *  entry's data is known, e.g., it is copied unchanged from a ZipInput, the whole layout is
+     *  planned first: the local headers, with their alignment, are generated in order on the calling
+     *  thread.  Then each entry's header and data are written to its planned region of the file by
+     *  positional writes, several entries at once.  This needs a file output, otherwise (or if pool
+     *  is null) the regions are written one after the other.  The result is the same either way.
+     *
+     *  When the header generated for an entry read from a ZipInput is identical to its header in
+     *  the input, the entry is copied verbatim, and runs of such entries that are adjacent in the
+     *  input are copied as a single region, e.g., by one FileChannel.transferTo().  Only their
+     *  offsets in the central directory change.
+     *
+     *  The input is read in the order of its entries (see ZioEntry.INPUT_ORDER) where possible: the
+     *  local headers of entries to be copied are read that way first, and the parallel tasks are
+     *  submitted in that order.
+     */
+    public void writeParallel( Collection<ZioEntry> entries, ForkJoinPool pool) throws IOException
+    {
+        writeParallel( entries, pool, null);
+    }
+
+    /** Notified by writeParallel() as the entries are written. */
+    public interface WriteListener
+    {
+        /** Called on the writing thread once for each entry written, with the number of entries
+         *  written so far and the number being written.  Return false to stop writing; the rest of
+         *  the entries are then not written, and only those written without a gap before them are
+         *  added to the central directory.
+         */
+        boolean entryWritten( int count, int total);
+    }
+
+    /** Write the entries as above, notifying the listener, if any, as each region of the output is
+     *  completed.  When writing in parallel that is after each task, in the order the tasks were
+     *  submitted.
+     */
+    public void writeParallel( Collection<ZioEntry> entries, ForkJoinPool pool, WriteListener listener) throws IOException
+    {
+        checkNoOpenEntry();
+        boolean debug = log.isDebugEnabled();
+
+        // Read the local headers, which give the position of each entry's data, in input order.
+        List<ZioEntry> unread = new ArrayList<ZioEntry>();
+        for (ZioEntry entry : entries) {
+            if (entry.getCopiedInput() != null && entry.getDataPosition() < 0) unread.add( entry);
+        }
+        Collections.sort( unread, ZioEntry.INPUT_ORDER);
+        for (ZioEntry entry : unread) entry.readLocalHeader();
+
+        // Generate the local headers at their planned offsets.
+        ByteArrayChannel headerData = new ByteArrayChannel();
+        ZipSource headerSource = headerData.getSource();
+        ZipOutput headerOutput = new ZipOutput( headerData);
+        headerOutput.alignmentPolicy = alignmentPolicy;
+        List<Region> regions = new ArrayList<Region>();
+        Set<String> plannedNames = new HashSet<String>();
+        long offset = filePointer;
+        int verbatimEntries = 0;
+        for (ZioEntry entry : entries) {
+            String entryName = entry.getName();
+            if (namesWritten.contains( entryName) || !plannedNames.add( entryName)) {
+                log.warn("Skipping duplicate file in output: " + entryName);
+                continue;
+            }
+
+            // Where the entry is in its input, if it is copied from one.
+            ZipInput input = entry.getCopiedInput();
+            long inputOffset = (input != null) ? entry.getLocalHeaderOffset() : -1;
+
+            int headerStart = (int)headerData.position();
+            headerOutput.filePointer = offset;
+            entry.writeLocalHeader( headerOutput);
+            headerOutput.flush();
+            int headerLength = (int)(headerOutput.filePointer - offset);
+            long length = headerLength + entry.getCompressedSize();
+
+            Region last = regions.isEmpty() ? null : regions.get( regions.size() - 1);
+            if (input != null && sameHeader( input, inputOffset, headerSource.map( headerStart, headerLength))) {
+                headerData.truncate( headerStart);
+                verbatimEntries += 1;
+                if (last != null && last.input == input && last.inputPosition + last.length == inputOffset) {
+                    last.length += length;
+                    last.entries.add( entry);
+                }
+                else regions.add( new Region( offset, input, inputOffset, length, entry));
+            }
+            else regions.add( new Region( offset, entry, headerStart, headerLength));
+
+            offset += length;
+        }
+        final byte[] headers = headerData.toByteArray();
+        int total = plannedNames.size();
+        if (debug) log.debug(String.format("Writing %d entries in %d regions, %d entries verbatim", total, regions.size(), verbatimEntries));
+        int count = 0;
+
+        // The entries are added to the central directory as their regions are written, so if the
+        // copy stops early the output is a valid zip file of the entries written so far.
+        if (pool == null || !(channel instanceof FileChannel)) {
+            for (Region region : regions) {
+                if (region.input != null) writeBytes( region.input, region.inputPosition, region.length);
+                else {
+                    writeBytes( headers, region.headerStart, region.headerLength);
+                    region.entry.writeData( this);
+                }
+                addWritten( region);
+                count += region.entries.size();
+                if (!reportWritten( listener, count - region.entries.size(), count, total)) return;
+            }
+            if (filePointer != offset) throw new IllegalStateException( String.format("Wrote to 0x%08x instead of 0x%08x", filePointer, offset));
+            return;
+        }
+
+        final FileChannel fileChannel = (FileChannel)channel;
+        flush();
+        // The file may not start at position zero, e.g., if the stream was opened to append.
+        final long fileBase = fileChannel.position() - filePointer;
+
+        // Split large verbatim regions, and group small regions, so that each task writes about PARALLEL_TASK_SIZE bytes.
+        List<Region> split = new ArrayList<Region>();
+        for (Region region : regions) {
+            if (region.input == null) split.add( region);
+            else {
+                for (long start = 0; start < region.length; start += PARALLEL_TASK_SIZE) {
+                    // The entries are completed by the region's last piece.
+                    boolean lastPiece = (start + PARALLEL_TASK_SIZE >= region.length);
+                    split.add( new Region( region.offset + start, region.input, region.inputPosition + start, Math.min( PARALLEL_TASK_SIZE, region.length - start),
+                                           lastPiece ? region.entries : Collections.<ZioEntry>emptyList()));
+                }
+            }
+        }
+        List<Region> outputOrder = new ArrayList<Region>( split);
+        // Submit the tasks in the order they read the input, new entries last.
+        Collections.sort( split, new Comparator<Region>() {
+            public int compare( Region a, Region b) {
+                return Long.compare( a.getInputPosition(), b.getInputPosition());
+            }
+        });
+
+        // Set to make the tasks that haven't started yet skip their regions.
+        final AtomicBoolean stopped = new AtomicBoolean( false);
+        List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+        List<Integer> taskEntryCounts = new ArrayList<Integer>();
+        int first = 0;
+        long taskSize = 0;
+        for (int i = 0; i < split.size(); i++) {
+            taskSize += split.get( i).length;
+            if (taskSize < PARALLEL_TASK_SIZE && i + 1 < split.size()) continue;
+
+            final List<Region> taskRegions = split.subList( first, i + 1);
+            int taskEntryCount = 0;
+            for (Region region : taskRegions) taskEntryCount += region.entries.size();
+            taskEntryCounts.add( taskEntryCount);
+            tasks.add( pool.submit( new Callable<Void>() {
+                public Void call() throws IOException {
+                    for (Region region : taskRegions) {
+                        if (stopped.get()) return null;
+                        long position = fileBase + region.offset;
+                        if (region.input != null) copy( region.input.source, region.inputPosition, region.length, fileChannel, position);
+                        else {
+                            ByteBuffer header = ByteBuffer.wrap( headers, region.headerStart, region.headerLength);
+                            while (header.hasRemaining()) position += fileChannel.write( header, position);
+                            region.entry.writeData( fileChannel, position);
+                        }
+                        region.written = true;
+                    }
+                    return null;
+                }
+            }));
+            first = i + 1;
+            taskSize = 0;
+        }
+
+        IOException failure = null;
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                tasks.get( i).get();
+                count += taskEntryCounts.get( i);
+                if (!reportWritten( listener, count - taskEntryCounts.get( i), count, total)) break;
+            }
+        }
+        catch (InterruptedException x) {
+            failure = new IOException( x.getMessage(), x);
+        }
+        catch (ExecutionException x) {
+            failure = new IOException( x.getCause().getMessage(), x.getCause());
+        }
+        finally {
+            // Nothing may still be writing to the file when this returns.
+            stopped.set( true);
+            awaitTasks( tasks);
+        }
+
+        // Keep the entries written without a gap, and continue writing after them.
+        long end = filePointer;
+        for (Region region : outputOrder) {
+            if (!region.written) break;
+            addWritten( region);
+            end = region.offset + region.length;
+        }
+        filePointer = end;
+        if (end != offset) fileChannel.truncate( fileBase + end);
+        fileChannel.position( fileBase + filePointer);
+        if (failure != null) throw failure;
+    }
+
+    // Add the entries completed by writing the region to the central directory.
+    private void addWritten( Region region)
+    {
+        for (ZioEntry entry : region.entries) {
+            entriesWritten.add( entry);
+            namesWritten.add( entry.getName());
+            if (log.isDebugEnabled()) ZipListingHelper.listEntry( log, entry);
+        }
+    }
+
+    // Wait for the tasks to finish, whether they succeed or not.
+    private static void awaitTasks( List<Future<Void>> tasks)
+    {
+        boolean interrupted = false;
+        for (Future<Void> task : tasks) {
+            while (true) {
+                try {
+                    task.get();
+                    break;
+                }
+                catch (InterruptedException x) {
+                    interrupted = true;
+                }
+                catch (ExecutionException x) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // Notify the listener of each entry from 'from' (exclusive) to 'to' (inclusive), returning false if it asks to stop.
+    private static boolean reportWritten( WriteListener listener, int from, int to, int total)
+    {
+        if (listener == null) return true;
+        for (int count = from + 1; count <= to; count++) {
+            if (!listener.entryWritten( count, total)) return false;
+        }
+        return true;
+    }
+
+    // A planned part of the output: either an entry whose header was generated and whose data is
+    // copied by the entry, or a verbatim copy of part of an input.
+    private static class Region
+    {
+        final long offset;
+        final ZioEntry entry;
+        final int headerStart;
+        final int headerLength;
+        final ZipInput input;
+        final long inputPosition;
+        long length;
+        final List<ZioEntry> entries; // the entries completed by writing the region
+        volatile boolean written = false;
+
+        Region( long offset, ZioEntry entry, int headerStart, int headerLength) {
+            this.offset = offset;
+            this.entry = entry;
+            this.headerStart = headerStart;
+            this.headerLength = headerLength;
+            this.input = null;
+            this.inputPosition = -1;
+            this.length = headerLength + entry.getCompressedSize();
+            this.entries = Collections.singletonList( entry);
+        }
+
+        Region( long offset, ZipInput input, long inputPosition, long length, ZioEntry entry) {
+            this( offset, input, inputPosition, length, new ArrayList<ZioEntry>());
+            entries.add( entry);
+        }
+
+        Region( long offset, ZipInput input, long inputPosition, long length, List<ZioEntry> entries) {
+            this.offset = offset;
+            this.entry = null;
+            this.headerStart = 0;
+            this.headerLength = 0;
+            this.input = input;
+            this.inputPosition = inputPosition;
+            this.length = length;
+            this.entries = entries;
+        }
+
+        // Where the region's data is read from in its input, if any.
+        long getInputPosition() {
+            if (input != null) return inputPosition;
+            return (entry.getCopiedInput() != null) ? entry.getDataPosition() : Long.MAX_VALUE;
+        }
+    }
+
+    // Returns true if the input has the given header bytes at the position.
+    private static boolean sameHeader( ZipInput input, long position, ByteBuffer header) throws IOException
+    {
+        if (position + header.remaining() > input.getFileLength()) return false;
+        ByteBuffer inputHeader = ByteBuffer.allocate( header.remaining());
+        input.readFully( position, inputHeader);
+        inputHeader.flip();
+        return inputHeader.equals( header);
+    }
+
+    /** Copy count bytes of the source, starting at the given position, to the channel at channelPosition
+     *  with positional writes, which leave the channel's position alone.
+     */
+    static void copy( ZipSource source, long position, long count, FileChannel channel, long channelPosition) throws IOException
+    {
+        // Data in memory is written straight from the source's buffer.
+        ByteBuffer region = (count <= Integer.MAX_VALUE && source.getFileChannel() == null) ? source.map( position, count) : null;
+        if (region != null) {
+            while (region.hasRemaining()) channelPosition += channel.write( region, channelPosition);
+            return;
+        }
+
+        byte[] buffer = CodecPool.getBuffer();
+        try {
+            long totalCount = 0;
+            while (totalCount != count) {
+                ByteBuffer chunk = ByteBuffer.wrap( buffer, 0, (int)Math.min( count - totalCount, buffer.length));
+                int numRead = source.read( chunk, position + totalCount);
+                if (numRead <= 0) {
+                    throw new IllegalStateException(String.format("EOF reached while copying with %d bytes left to go", count - totalCount));
+                }
+                chunk.flip();
+                while (chunk.hasRemaining()) channelPosition += channel.write( chunk, channelPosition);
+                totalCount += numRead;
+            }
+        }
+        finally {
+            CodecPool.release( buffer);
+        }
+    }
+
+    private void checkNoOpenEntry() {
+        if (openEntry != null) throw new IllegalStateException("Entry is still open: " + openEntry.getName());
+    }
+
+    /** Append the entries of a spool, i.e., a ZipOutput that has been written to the given file but 
+     *  not closed.  The spooled data is copied to this output and the entries are added to the 
+     *  central directory with their local header offsets adjusted.  The current file pointer should
+     *  be a multiple of ZioEntry.STORED_ALIGNMENT to preserve the spool's alignment.
+     */
+    public void append( ZipOutput spool, File spoolFile) throws IOException
+    {
+        spool.flush();
+        if (spool.out != null) spool.out.close();
+
+        ZipSource spoolData = ZipSource.open( spoolFile);
+        try {
+            append( spool, spoolData);
+        }
+        finally {
+            spoolData.close();
+        }
+    }
+
+    /** Append the entries of a spool whose data is read from the given source, e.g., the source of the
+     *  ByteArrayChannel that the spool writes to.  The spool is flushed first.
+     */
+    public void append( ZipOutput spool, ZipSource spoolData) throws IOException
+    {
+        spool.flush();
+        if (spool.writeBehind != null) {
+            spool.writeBehind.stop();
+            spool.writeBehind = null;
+        }
+
+        long base = getFilePointer();
+        if (log.isDebugEnabled()) log.debug(String.format("Appending %d spooled entries at 0x%08x", spool.entriesWritten.size(), base));
+
+        writeBytes( spoolData, 0, spoolData.size());
+
+        for (ZioEntry entry : spool.entriesWritten) {
+            if (namesWritten.contains( entry.getName())) {
+                throw new IllegalStateException("Duplicate file in spooled output: " + entry.getName());
+            }
+            entry.setLocalHeaderOffset( base + entry.getLocalHeaderOffset());
+            entriesWritten.add( entry);
+            namesWritten.add( entry.getName());
+        }
+    }
+
     public void close() throws IOException
     {
-        CentralEnd centralEnd = new CentralEnd();
-        
-        centralEnd.centralStartOffset = (int)getFilePointer();
-        centralEnd.numCentralEntries = centralEnd.totalCentralEntries = (short)entriesWritten.size();
-        
-        for (ZioEntry entry : entriesWritten) {
-            entry.write( this);
+        try {
+            checkNoOpenEntry();
+            CentralEnd centralEnd = new CentralEnd();
+
+            centralEnd.centralStartOffset = getFilePointer();
+            centralEnd.numCentralEntries = centralEnd.totalCentralEntries = entriesWritten.size();
+
+            for (ZioEntry entry : entriesWritten) {
+                entry.write( this);
+            }
+
+            centralEnd.centralDirectorySize = getFilePointer() - centralEnd.centralStartOffset;
+            centralEnd.fileComment = "";
+
+            centralEnd.write( this);
+            flush();
+        }
+        finally {
+            // Stop the write-behind thread and release the output even if the central directory could not be written.
+            if (writeBehind != null) {
+                writeBehind.stop();
+                if (log.isDebugEnabled()) log.debug( writeBehind.statistics.toString());
+            }
+            if (out != null) try { out.close(); } catch( Throwable t) {}
+            else if (channel != null) try { channel.close(); } catch( Throwable t) {}
         }
-        
-        centralEnd.centralDirectorySize = (int)(getFilePointer() - centralEnd.centralStartOffset);
-        centralEnd.fileComment = "";
-        
-        centralEnd.write( this);
-        
-        if (out != null) try { out.close(); } catch( Throwable t) {}
     }
 
-    public int getFilePointer() throws IOException {
+    /** Write any buffered data to the underlying stream, and wait for the write-behind thread to write its pending buffers. */
+    void flush() throws IOException
+    {
+        spill();
+        if (writeBehind != null) writeBehind.drain();
+    }
+
+    // Hand the buffered data to the write-behind thread, if enabled, or write it now.
+    private void spill() throws IOException
+    {
+        if (buffer.position() == 0) return;
+        buffer.flip();
+        if (writeBehind != null) {
+            buffer = writeBehind.submit( buffer);
+            return;
+        }
+        write( buffer);
+        buffer.clear();
+    }
+
+    // Write the buffer's data from position zero to the limit to the underlying stream.
+    private void write( ByteBuffer data) throws IOException
+    {
+        if (channel != null) {
+            while (data.hasRemaining()) channel.write( data);
+        }
+        else out.write( data.array(), data.arrayOffset(), data.limit());
+    }
+
+    // Make room in the buffer for length bytes.
+    private void reserve( int length) throws IOException
+    {
+        if (buffer.remaining() < length) spill();
+    }
+
+    public long getFilePointer() throws IOException {
         return filePointer;
     }
 
 
-    public void writeInt( int value) throws IOException{
-        byte[] data = new byte[4];
-        for (int i = 0; i < 4; i++) {
-            data[i] = (byte)(value & 0xFF);
-            value = value >> 8;
+    /** Copy count bytes of the input file, starting at the given position, to the output.  
+     *  When both are file channels the data is moved by FileChannel.transferTo(), which lets the
+     *  kernel do the copy without passing the data through the Java heap.
+     */
+    public void writeBytes( ZipInput input, long position, long count) throws IOException {
+
+        writeBytes( input.source, position, count);
+    }
+
+    void writeBytes( ZipSource source, long position, long count) throws IOException {
+
+        FileChannel sourceChannel = source.getFileChannel();
+        if (sourceChannel != null) {
+            writeBytes( sourceChannel, position, count);
+            return;
+        }
+
+        // Data in memory is copied straight from the source's buffer.
+        ByteBuffer region = (count <= Integer.MAX_VALUE) ? source.map( position, count) : null;
+        if (region != null) {
+            writeBytes( region);
+            return;
+        }
+
+        byte[] copyBuffer = CodecPool.getBuffer();
+        long totalCount = 0;
+        while (totalCount != count) {
+            int numRead = source.read( ByteBuffer.wrap( copyBuffer, 0, (int)Math.min( count - totalCount, copyBuffer.length)), position + totalCount);
+            if (numRead <= 0) {
+                throw new IllegalStateException(String.format("EOF reached while copying with %d bytes left to go", count - totalCount));
+            }
+            writeBytes( copyBuffer, 0, numRead);
+            totalCount += numRead;
+        }
+        CodecPool.release( copyBuffer);
+    }
+
+    void writeBytes( FileChannel source, long position, long count) throws IOException {
+
+        if (channel != null) {
+            flush();
+            transferFrom( source, position, count);
+            return;
         }
-        out.write( data);
+
+        ByteBuffer copyBuffer = ByteBuffer.allocate( (int)Math.min( count, 8096));
+        long totalCount = 0;
+        while (totalCount != count) {
+            copyBuffer.clear();
+            copyBuffer.limit( (int)Math.min( count - totalCount, copyBuffer.capacity()));
+            int numRead = source.read( copyBuffer, position + totalCount);
+            if (numRead <= 0) {
+                throw new IllegalStateException(String.format("EOF reached while copying with %d bytes left to go", count - totalCount));
+            }
+            writeBytes( copyBuffer.array(), 0, numRead);
+            totalCount += numRead;
+        }
+    }
+
+    // Positional transfers leave the source channel's position alone, so this is safe while
+    // other threads read the same input.
+    private void transferFrom( FileChannel source, long position, long count) throws IOException {
+        long totalCount = 0;
+        while (totalCount != count) {
+            long numTransferred = source.transferTo( position + totalCount, count - totalCount, channel);
+            if (numTransferred <= 0) {
+                throw new IllegalStateException(String.format("EOF reached while copying with %d bytes left to go", count - totalCount));
+            }
+            totalCount += numTransferred;
+        }
+        filePointer += count;
+    }
+
+    public void writeInt( int value) throws IOException{
+        reserve( 4);
+        buffer.putInt( value);
         filePointer += 4;
     }
 
+    public void writeLong( long value) throws IOException{
+        reserve( 8);
+        buffer.putLong( value);
+        filePointer += 8;
+    }
+
     public void writeShort( short value) throws IOException {
-        byte[] data = new byte[2];
-        for (int i = 0; i < 2; i++) {
-            data[i] = (byte)(value & 0xFF);
-            value = (short)(value >> 8);
-        }
-        out.write( data);
+        reserve( 2);
+        buffer.putShort( value);
         filePointer += 2;
     }
 
     public void writeString( String value) throws IOException {
 
-        byte[] data = value.getBytes();
-        out.write( data);
-        filePointer += data.length;
+        writeBytes( value.getBytes());
     }
 
     public void writeBytes( byte[] value) throws IOException {
 
-        out.write( value);
-        filePointer += value.length;
+        writeBytes( value, 0, value.length);
     }
 
     public void writeBytes( byte[] value, int offset, int length) throws IOException {
 
-        out.write( value, offset, length);
+        if (writeBehind != null && length > buffer.remaining()) {
+            // Copy through the buffers so that the write-behind thread writes the data.
+            writeBytes( ByteBuffer.wrap( value, offset, length));
+            return;
+        }
+        if (length <= buffer.remaining()) {
+            buffer.put( value, offset, length);
+        }
+        else {
+            flush();
+            // Large blocks of data bypass the buffer.
+            if (length < buffer.capacity()) buffer.put( value, offset, length);
+            else if (out != null) out.write( value, offset, length);
+            else {
+                ByteBuffer block = ByteBuffer.wrap( value, offset, length);
+                while (block.hasRemaining()) channel.write( block);
+            }
+        }
+        filePointer += length;
+    }
+
+    /** Write the remaining bytes of the buffer. */
+    void writeBytes( ByteBuffer value) throws IOException {
+
+        int length = value.remaining();
+        while (value.hasRemaining()) {
+            if (!buffer.hasRemaining()) spill();
+            if (channel != null && writeBehind == null && buffer.position() == 0 && value.remaining() >= buffer.capacity()) {
+                // Large blocks of data bypass the buffer.
+                channel.write( value);
+                continue;
+            }
+            int count = Math.min( value.remaining(), buffer.remaining());
+            ByteBuffer part = value.duplicate();
+            part.limit( part.position() + count);
+            buffer.put( part);
+            value.position( value.position() + count);
+        }
         filePointer += length;
-    }    
+    }
 
-}
+    /** Writes the buffers handed to it by spill() on its own thread, in order.  There is one buffer
+     *  more than can be pending, the one being filled.
+     */
+    class WriteBehind implements Runnable
+    {
+        final ArrayBlockingQueue<ByteBuffer> pending;
+        final ArrayBlockingQueue<ByteBuffer> free;
+        final StageStatistics statistics = new StageStatistics("write-behind");
+        final Thread thread;
+
+        private int outstanding = 0; // guarded by this
+        private IOException failure = null; // guarded by this
 
+        WriteBehind( int maxPendingBuffers)
+        {
+            pending = new ArrayBlockingQueue<ByteBuffer>( maxPendingBuffers);
+            // Room for the buffer being filled too, once they have all been written.
+            free = new ArrayBlockingQueue<ByteBuffer>( maxPendingBuffers + 1);
+            for (int i = 0; i < maxPendingBuffers; i++) free.add( newBuffer());
+            thread = new Thread( this, "zipio-write-behind");
+            thread.setDaemon( true);
+            thread.start();
+        }
 
+        /** Queue the flipped buffer to be written and return an empty one, waiting for one to be written if they are all pending. */
+        ByteBuffer submit( ByteBuffer data) throws IOException
+        {
+            checkFailure();
+            ByteBuffer next = free.poll();
+            if (next == null) {
+                long start = System.nanoTime();
+                try {
+                    next = free.take();
+                }
+                catch (InterruptedException x) {
+                    throw new InterruptedIOException( "Interrupted while waiting for a buffer to be written");
+                }
+                statistics.stalled( System.nanoTime() - start);
+            }
+
+            synchronized (this) {
+                outstanding += 1;
+            }
+            // Never blocks, since the caller now holds one of the other buffers.
+            pending.add( data);
+            return next;
+        }
+
+        /** Wait until the pending buffers have been written. */
+        synchronized void drain() throws IOException
+        {
+            try {
+                while (outstanding > 0) wait();
+            }
+            catch (InterruptedException x) {
+                throw new InterruptedIOException( "Interrupted while waiting for buffers to be written");
+            }
+            checkFailure();
+        }
+
+        private synchronized void checkFailure() throws IOException {
+            if (failure != null) throw new IOException( "Write-behind failed: " + failure.getMessage(), failure);
+        }
+
+        void stop() {
+            thread.interrupt();
+        }
+
+        public void run()
+        {
+            try {
+                while (true) {
+                    ByteBuffer data = pending.poll();
+                    if (data == null) {
+                        long start = System.nanoTime();
+                        data = pending.take();
+                        statistics.waited( System.nanoTime() - start);
+                    }
+                    IOException error = null;
+                    int length = data.remaining();
+                    try {
+                        // Once a write has failed the rest are dropped, the failure is reported by the next submit() or drain().
+                        boolean failed;
+                        synchronized (this) {
+                            failed = (failure != null);
+                        }
+                        if (!failed) write( data);
+                    }
+                    catch (IOException x) {
+                        error = x;
+                    }
+                    catch (RuntimeException x) {
+                        error = new IOException( x.getMessage(), x);
+                    }
+                    statistics.processed( length);
+                    data.clear();
+                    free.add( data);
+                    synchronized (this) {
+                        if (error != null && failure == null) failure = error;
+                        outstanding -= 1;
+                        notifyAll();
+                    }
+                }
+            }
+            catch (InterruptedException x) {
+                // Stopped.
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * The bytes of a zip file, readable at any position.  ZipInput reads from a source, so a zip file
+ * can be read from a file, a memory-mapped file, a byte array or ByteBuffer, or any
+ * SeekableByteChannel.  Reads must be safe to call from several threads at once.
+ */
+public abstract class ZipSource
+{
+    /** Returns the number of bytes. */
+    public abstract long size() throws IOException;
+
+    /** Read bytes at the given position into the buffer.  Returns the number read, or -1 at the end. */
+    public abstract int read( ByteBuffer dst, long position) throws IOException;
+
+    /** Returns a read-only buffer of the given region, if that can be done without copying it, e.g.,
+     *  by memory-mapping a file, otherwise null.  The buffer's byte order is undefined.
+     */
+    public ByteBuffer map( long position, long length) throws IOException {
+        return null;
+    }
+
+    /** Returns the file channel of the source, if any, so that data can be copied by FileChannel.transferTo(). */
+    public FileChannel getFileChannel() {
+        return null;
+    }
+
+    public void close() throws IOException {
+    }
+
+    /** Read the file through a FileChannel. */
+    public static ZipSource open( File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile( file, "r");
+        return new FileSource( in.getChannel());
+    }
+
+    /** Memory-map the whole file and read from the mapping. */
+    public static ZipSource map( File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile( file, "r");
+        try {
+            // The mapping remains valid after the file is closed.
+            return new BufferSource( in.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, in.length()));
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    public static ZipSource of( byte[] data) {
+        return new BufferSource( ByteBuffer.wrap( data));
+    }
+
+    /** Use the bytes from the buffer's position to its limit. */
+    public static ZipSource of( ByteBuffer data) {
+        return new BufferSource( data.slice());
+    }
+
+    /** Read from the channel.  Positional reads are used for file channels, other channels are read
+     *  while holding their lock, since reading moves their position.
+     */
+    public static ZipSource of( SeekableByteChannel channel) {
+        if (channel instanceof FileChannel) return new FileSource( (FileChannel)channel);
+        return new ChannelSource( channel);
+    }
+
+    static class FileSource extends ZipSource
+    {
+        private final FileChannel channel;
+
+        FileSource( FileChannel channel) {
+            this.channel = channel;
+        }
+
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        public int read( ByteBuffer dst, long position) throws IOException {
+            return channel.read( dst, position);
+        }
+
+        public ByteBuffer map( long position, long length) throws IOException {
+            return channel.map( FileChannel.MapMode.READ_ONLY, position, length);
+        }
+
+        public FileChannel getFileChannel() {
+            return channel;
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    static class BufferSource extends ZipSource
+    {
+        private final ByteBuffer data;
+
+        BufferSource( ByteBuffer data) {
+            this.data = data;
+        }
+
+        public long size() {
+            return data.limit();
+        }
+
+        public int read( ByteBuffer dst, long position) {
+            if (position >= data.limit()) return -1;
+            int count = (int)Math.min( dst.remaining(), data.limit() - position);
+            ByteBuffer src = data.duplicate();
+            src.position( (int)position);
+            src.limit( (int)position + count);
+            dst.put( src);
+            return count;
+        }
+
+        public ByteBuffer map( long position, long length) {
+            if (position < 0 || length < 0 || position + length > data.limit()) {
+                throw new IllegalArgumentException( String.format("Region 0x%08x+%d is outside the source", position, length));
+            }
+            ByteBuffer region = data.duplicate();
+            region.position( (int)position);
+            region.limit( (int)(position + length));
+            return region.slice().asReadOnlyBuffer();
+        }
+    }
+
+    static class ChannelSource extends ZipSource
+    {
+        private final SeekableByteChannel channel;
+
+        ChannelSource( SeekableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        public int read( ByteBuffer dst, long position) throws IOException {
+            synchronized (channel) {
+                channel.position( position);
+                return channel.read( dst);
+            }
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import kellinwood.logging.Logger;
+
+/**
+ * Reads a zip file front to back from a stream, e.g., a pipe, by walking the local headers instead
+ * of starting from the central directory at the end.  Entries whose sizes are only given in a
+ * data descriptor after the data (general purpose bit 3) are supported if they are deflated, the
+ * end of the data is found by inflating it.  Reading stops at the central directory, which is not
+ * parsed, so entry attributes that only appear there (comments, external attributes) are not set,
+ * and the extra data is that of the local headers.
+ *
+ * Call getNextEntry() to advance to each entry, and getInputStream() to read its uncompressed
+ * content.  Alternatively, readEntries() buffers every entry's data in an EntryBuffer, spilling
+ * to disk past the EntryBuffer threshold, so that the entries can be used like those of a ZipInput,
+ * e.g., for signing.
+ */
+public class ZipStreamInput
+{
+    static Logger log = Logger.getLogger(ZipStreamInput.class);
+
+    static final int BUFFER_SIZE = 65536;
+
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+    private final InputStream in;
+
+    // Bytes read ahead from the stream, those from position to limit are not consumed yet.
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private long streamPosition = 0; // stream offset of buffer[position]
+
+    private ZioEntry entry = null;
+    private EntryStream entryStream = null;
+    private boolean finished = false;
+
+    // Set by ZioEntry.readLocal() when the entry's sizes and CRC follow its data.
+    private boolean dataDescriptor;
+    private boolean zip64DataDescriptor;
+
+    public ZipStreamInput( InputStream in)
+    {
+        this.in = in;
+    }
+
+    /** Advance to the next entry, skipping the unread data of the current one.  Returns null at the
+     *  central directory or the end of the stream.
+     */
+    public ZioEntry getNextEntry() throws IOException
+    {
+        if (finished) return null;
+        if (entryStream != null) entryStream.skipToEnd( null);
+        entry = null;
+        entryStream = null;
+
+        if (!fill( 4)) {
+            finished = true;
+            return null;
+        }
+        int signature = readInt();
+        if (signature != LOCAL_HEADER_SIGNATURE) {
+            // Most likely the central directory, 0x02014b50.
+            if (log.isDebugEnabled()) log.debug(String.format("Stopped at signature 0x%08x, pos=0x%08x", signature, streamPosition - 4));
+            finished = true;
+            return null;
+        }
+
+        dataDescriptor = false;
+        zip64DataDescriptor = false;
+        entry = ZioEntry.readLocal( this);
+        if (dataDescriptor && entry.getCompression() == 0) {
+            throw new ZipException( "Stored entries with a data descriptor are not supported: " + entry.getName());
+        }
+        entryStream = new EntryStream();
+        return entry;
+    }
+
+    /** Returns a stream of the current entry's uncompressed content.  The CRC and size are checked at the end. */
+    public InputStream getInputStream()
+    {
+        if (entryStream == null) throw new IllegalStateException( "No current entry");
+        return entryStream;
+    }
+
+    /** Read the remaining entries, buffering the data of each one as it is stored in the stream.  Call
+     *  ZioEntry.release() on the entries when done with them to free the buffers.
+     */
+    public Map<String,ZioEntry> readEntries() throws IOException
+    {
+        Map<String,ZioEntry> entries = new LinkedHashMap<String,ZioEntry>();
+        ZioEntry next;
+        while ((next = getNextEntry()) != null) {
+            EntryBuffer data = new EntryBuffer();
+            entryStream.skipToEnd( data);
+            data.close();
+            next.setStreamData( data, entryStream.crc32, entryStream.compressedSize, entryStream.size);
+            ZioEntry replaced = entries.put( next.getName(), next);
+            if (replaced != null) replaced.release();
+        }
+        return entries;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /** Returns the number of bytes consumed from the stream. */
+    public long getPosition() {
+        return streamPosition;
+    }
+
+    void expectDataDescriptor( boolean zip64) {
+        dataDescriptor = true;
+        zip64DataDescriptor = zip64;
+    }
+
+    // Make sure at least count bytes are buffered.  Returns false if the stream ends first.
+    private boolean fill( int count) throws IOException
+    {
+        if (limit - position >= count) return true;
+        if (position > 0) {
+            System.arraycopy( buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        while (limit < count) {
+            int numRead = in.read( buffer, limit, buffer.length - limit);
+            if (numRead < 0) return false;
+            limit += numRead;
+        }
+        return true;
+    }
+
+    private void require( int count) throws IOException {
+        if (!fill( count)) throw new EOFException( String.format("EOF reached at pos=0x%08x", streamPosition + limit - position));
+    }
+
+    private void consume( int count) {
+        position += count;
+        streamPosition += count;
+    }
+
+    public int readInt() throws IOException
+    {
+        require( 4);
+        int result = (buffer[position] & 0xFF) | ((buffer[position+1] & 0xFF) << 8) |
+            ((buffer[position+2] & 0xFF) << 16) | ((buffer[position+3] & 0xFF) << 24);
+        consume( 4);
+        return result;
+    }
+
+    public short readShort() throws IOException
+    {
+        require( 2);
+        short result = (short)((buffer[position] & 0xFF) | ((buffer[position+1] & 0xFF) << 8));
+        consume( 2);
+        return result;
+    }
+
+    public long readLong() throws IOException
+    {
+        long low = readInt() & 0xFFFFFFFFL;
+        long high = readInt() & 0xFFFFFFFFL;
+        return (high << 32) | low;
+    }
+
+    public byte[] readBytes( int length) throws IOException
+    {
+        byte[] result = new byte[length];
+        int count = 0;
+        while (count < length) {
+            if (position == limit) require( 1);
+            int n = Math.min( length - count, limit - position);
+            System.arraycopy( buffer, position, result, count, n);
+            consume( n);
+            count += n;
+        }
+        return result;
+    }
+
+    /** The data of the current entry.  Reads the uncompressed content, and optionally copies the
+     *  stored (i.e., compressed) bytes to a sink as they are consumed.
+     */
+    class EntryStream extends InputStream
+    {
+        final boolean deflated = entry.getCompression() != 0;
+        long remaining = dataDescriptor ? -1 : entry.getCompressedSize(); // stored bytes left, if known
+        Inflater inflater = deflated ? CodecPool.getInflater() : null;
+        int inflaterInput = 0; // bytes of the buffer given to the inflater and not consumed yet
+        boolean dummySupplied = false;
+        OutputStream sink = null;
+
+        final CRC32 crc = new CRC32();
+        int crc32;
+        long size = 0;
+        long compressedSize = 0;
+        boolean done = false;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int numRead = read( b, 0, 1);
+            return (numRead < 0) ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len) throws IOException
+        {
+            if (done) return -1;
+            if (len == 0) return 0;
+            int numRead = deflated ? inflate( b, off, len) : readStored( b, off, len);
+            if (numRead > 0) {
+                crc.update( b, off, numRead);
+                size += numRead;
+            }
+            if (numRead < 0 || (!deflated && remaining == 0) || (deflated && inflater.finished())) finish();
+            return numRead;
+        }
+
+        private void stored( int count) throws IOException
+        {
+            if (sink != null) sink.write( buffer, position, count);
+            consume( count);
+            compressedSize += count;
+            if (remaining > 0) remaining -= count;
+        }
+
+        private int readStored( byte[] b, int off, int len) throws IOException
+        {
+            if (remaining == 0) return -1;
+            require( 1);
+            int count = (int)Math.min( Math.min( len, limit - position), remaining);
+            System.arraycopy( buffer, position, b, off, count);
+            stored( count);
+            return count;
+        }
+
+        private int inflate( byte[] b, int off, int len) throws IOException
+        {
+            try {
+                while (true) {
+                    if (inflater.needsInput()) {
+                        if (remaining == 0) {
+                            // The nowrap Inflater may need an extra "dummy" byte, see ZioEntry.getInputStream().
+                            if (dummySupplied) throw new EOFException( "Unexpected end of compressed data in " + entry.getName());
+                            inflater.setInput( new byte[1]);
+                            dummySupplied = true;
+                        }
+                        else {
+                            require( 1);
+                            inflaterInput = limit - position;
+                            if (remaining > 0 && remaining < inflaterInput) inflaterInput = (int)remaining;
+                            inflater.setInput( buffer, position, inflaterInput);
+                        }
+                    }
+                    int numRead = inflater.inflate( b, off, len);
+                    if (!dummySupplied) {
+                        int consumed = inflaterInput - inflater.getRemaining();
+                        if (consumed > 0) {
+                            stored( consumed);
+                            inflaterInput -= consumed;
+                        }
+                    }
+                    if (numRead > 0 || inflater.finished()) return (numRead > 0) ? numRead : -1;
+                    if (inflater.needsDictionary()) throw new ZipException( "Preset dictionary required by " + entry.getName());
+                }
+            }
+            catch (DataFormatException x) {
+                throw new ZipException( entry.getName() + ": " + x.getMessage());
+            }
+        }
+
+        // Read the data descriptor, if any, and check the values.
+        private void finish() throws IOException
+        {
+            if (done) return;
+            done = true;
+            if (inflater != null) {
+                CodecPool.release( inflater);
+                inflater = null;
+            }
+            crc32 = (int)crc.getValue();
+
+            long expectedCompressedSize = entry.getCompressedSize();
+            long expectedSize = entry.getSize();
+            int expectedCrc = entry.getCrc32();
+            if (dataDescriptor) {
+                // Some writers, e.g., java.util.zip and ZipOutput.openEntry(), use 8 byte sizes when the
+                // data turns out to be too big, without a ZIP64 extra field in the local header.
+                boolean zip64 = zip64DataDescriptor || compressedSize >= ZioEntry.ZIP64_LIMIT || size >= ZioEntry.ZIP64_LIMIT;
+                int signature = readInt();
+                expectedCrc = (signature == DATA_DESCRIPTOR_SIGNATURE) ? readInt() : signature;
+                expectedCompressedSize = zip64 ? readLong() : (readInt() & 0xFFFFFFFFL);
+                expectedSize = zip64 ? readLong() : (readInt() & 0xFFFFFFFFL);
+            }
+
+            if (compressedSize != expectedCompressedSize || size != expectedSize || crc32 != expectedCrc) {
+                throw new ZipException( String.format("%s: expected size %d, compressed size %d, CRC 0x%08x, got %d, %d, 0x%08x",
+                                                      entry.getName(), expectedSize, expectedCompressedSize, expectedCrc,
+                                                      size, compressedSize, crc32));
+            }
+        }
+
+        /** Consume the rest of the data, copying the stored bytes to the sink if it is not null. */
+        void skipToEnd( OutputStream sink) throws IOException
+        {
+            this.sink = sink;
+            if (done) return;
+            if (!deflated || remaining > 0) {
+                // The stored bytes can be copied without inflating them, but then the CRC is not checked.
+                while (remaining > 0) {
+                    require( 1);
+                    stored( (int)Math.min( limit - position, remaining));
+                }
+                done = true;
+                if (inflater != null) {
+                    CodecPool.release( inflater);
+                    inflater = null;
+                }
+                crc32 = entry.getCrc32();
+                size = entry.getSize();
+                return;
+            }
+            byte[] scratch = CodecPool.getBuffer();
+            while (read( scratch, 0, scratch.length) >= 0) ;
+            CodecPool.release( scratch);
+        }
+
+        @Override
+        public void close() {
+            // Nothing, the data is skipped by getNextEntry().
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class ConcurrentReadTest extends AbstractTest {
+
+    static String content( int i) {
+        StringBuilder builder = new StringBuilder();
+        for (int j = 0; j <= i; j++) {
+            builder.append( String.format("Line %d of entry %d\n", j, i));
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void concurrentReadTest() {
+
+        try {
+            setupLogging();
+
+            // Sibling "simple_test.zip" is not read, just used to create the output in the same directory.
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File sfile = new File(siblingFile);
+            File outputFile = new File(sfile.getParent(), "test_concurrent.zip");
+
+            ZipOutput zipOutput = new ZipOutput( outputFile);
+            for (int i = 0; i < 200; i++) {
+                ZioEntry entry = new ZioEntry( String.format("entry%03d.txt", i));
+                if (i % 2 == 0) entry.setCompression(0);
+                OutputStream entryOut = entry.getOutputStream();
+                entryOut.write( content(i).getBytes());
+                zipOutput.write(entry);
+            }
+            zipOutput.close();
+
+            // Read every entry of the same ZipInput from several threads at once.
+            final ZipInput zipInput = ZipInput.read( outputFile.getAbsolutePath());
+            ExecutorService executor = Executors.newFixedThreadPool( 8);
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 200; i++) {
+                final int n = i;
+                results.add( executor.submit( new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        ZioEntry entry = zipInput.getEntry( String.format("entry%03d.txt", n));
+                        return content(n).equals( new String( entry.getData()));
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue( result.get());
+            }
+            executor.shutdown();
+            zipInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
@@ -15,10 +15,29 @@
  */
 package kellinwood.zipio;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import kellinwood.logging.LoggerInterface;
 import kellinwood.logging.LoggerManager;
@@ -111,6 +130,647 @@ public class CreateZipFileTest extends AbstractTest {
         }      
     }
     
+    @Test
+    public void spilledEntryTest() {
+        
+        try {
+            setupLogging();
+
+            // Write entries big enough to be spilled from the entry buffer to a temporary file.
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile(); 
+            File sfile = new File(siblingFile);
+            File outputFile = new File(sfile.getParent(), "test_spilled.zip");
+
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < 50000; i++) builder.append( String.format("Line %d\n", i));
+            String contentText = builder.toString();
+
+            EntryBuffer.setSpillThreshold( 100000);
+            ZipOutput zipOutput = new ZipOutput( outputFile);
+            
+            ZioEntry entry = new ZioEntry( "stored.txt");
+            entry.setCompression(0);
+            OutputStream entryOut = entry.getOutputStream();
+            entryOut.write( contentText.getBytes());
+            assertEquals( contentText, new String(entry.getData()));
+            zipOutput.write(entry);
+            entry.release();
+
+            entry = new ZioEntry( "deflated.txt");
+            entryOut = entry.getOutputStream();
+            entryOut.write( contentText.getBytes());
+            zipOutput.write(entry);
+            // The data is kept until released, e.g., to write the entry again.
+            assertEquals( contentText, new String(entry.getData()));
+            entry.release();
+            try {
+                entry.getInputStream();
+                fail( "Released entry read");
+            }
+            catch (IllegalStateException x) {}
+
+            zipOutput.close();
+
+            // verify the result
+            ZipInput zipInput = ZipInput.read( outputFile.getAbsolutePath());
+            assertEquals( contentText, new String(zipInput.getEntry("stored.txt").getData()));
+            assertEquals( contentText, new String(zipInput.getEntry("deflated.txt").getData()));
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }      
+        finally {
+            EntryBuffer.setSpillThreshold( EntryBuffer.DEFAULT_SPILL_THRESHOLD);
+        }
+    }
+    
+    @Test
+    public void parallelDeflateTest() {
+        
+        ForkJoinPool pool = new ForkJoinPool( 4);
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile(); 
+            File sfile = new File(siblingFile);
+            File outputFile = new File(sfile.getParent(), "test_parallel.zip");
+
+            // Several blocks of data, with repeats that span the block boundaries.
+            Random random = new Random( 42);
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < 100000; i++) builder.append( String.format("Line %d\n", random.nextInt( 1000)));
+            String contentText = builder.toString();
+            String smallText = "Smaller than one block.";
+
+            ZipOutput zipOutput = new ZipOutput( outputFile);
+            
+            ZioEntry entry = new ZioEntry( "large.txt");
+            entry.setDeflatePool( pool);
+            entry.getOutputStream().write( contentText.getBytes());
+            zipOutput.write(entry);
+
+            entry = new ZioEntry( "small.txt");
+            entry.setDeflatePool( pool);
+            entry.getOutputStream().write( smallText.getBytes());
+            zipOutput.write(entry);
+
+            // Flushing ends blocks early, some of them shorter than the dictionary.
+            entry = new ZioEntry( "flushed.txt");
+            entry.setDeflatePool( pool);
+            OutputStream entryOut = entry.getOutputStream();
+            byte[] content = contentText.getBytes();
+            for (int i = 0, count = 1000; i < content.length; i += count, count *= 3) {
+                entryOut.write( content, i, Math.min( count, content.length - i));
+                entryOut.flush();
+            }
+            zipOutput.write(entry);
+
+            zipOutput.close();
+
+            // verify the result
+            ZipInput zipInput = ZipInput.read( outputFile.getAbsolutePath());
+            assertEquals( contentText, new String(zipInput.getEntry("large.txt").getData()));
+            assertEquals( smallText, new String(zipInput.getEntry("small.txt").getData()));
+            assertEquals( contentText, new String(zipInput.getEntry("flushed.txt").getData()));
+
+            // The CRC is checked when java.util.zip reads the entry to the end.
+            ZipFile zipFile = new ZipFile( outputFile);
+            InputStream in = zipFile.getInputStream( zipFile.getEntry("large.txt"));
+            byte[] buffer = new byte[8192];
+            while (in.read( buffer) > 0) {}
+            in.close();
+            zipFile.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }      
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void parallelCrcTest() {
+
+        ForkJoinPool pool = new ForkJoinPool( 4);
+        try {
+            setupLogging();
+
+            byte[] data = new byte[1000003];
+            new Random( 42).nextBytes( data);
+            CRC32 crc = new CRC32();
+            crc.update( data, 0, data.length);
+
+            // Small segments, the last one shorter than the others.
+            ZipSource source = ZipSource.of( data);
+            assertEquals( (int)crc.getValue(), ParallelCrc32.compute( source, 0, data.length, pool, 65536));
+            assertEquals( (int)crc.getValue(), ParallelCrc32.compute( source, 0, data.length, null));
+
+            crc.reset();
+            crc.update( data, 100, 5000);
+            assertEquals( (int)crc.getValue(), ParallelCrc32.compute( source, 100, 5000, pool, 1000));
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+    
+    @Test
+    public void parallelWriteTest() {
+
+        ForkJoinPool pool = new ForkJoinPool( 4);
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File sfile = new File(siblingFile);
+
+            // Copied entries mixed with new ones, stored and deflated, written serially and in parallel.
+            File[] outputFiles = { new File(sfile.getParent(), "test_serial.zip"), new File(sfile.getParent(), "test_parallel_write.zip") };
+            Random random = new Random( 42);
+            byte[] large = new byte[3 * ZipOutput.PARALLEL_TASK_SIZE / 2];
+            random.nextBytes( large);
+            for (int i = 0; i < 2; i++) {
+                ZipInput zipInput = ZipInput.read( siblingFile);
+                List<ZioEntry> entries = new ArrayList<ZioEntry>( zipInput.getEntries().values());
+                for (int n = 0; n < 20; n++) {
+                    ZioEntry entry = new ZioEntry( String.format("new/%02d.bin", n));
+                    entry.setTime( 0);
+                    entry.setCompression( (n % 2) * 8);
+                    entry.getOutputStream().write( large, n * 1000, (n == 7) ? large.length - n * 1000 : 1000 + n);
+                    entries.add( entry);
+                }
+                ZipOutput zipOutput = new ZipOutput( outputFiles[i]);
+                zipOutput.setAlignmentPolicy( new AlignmentPolicy());
+                zipOutput.writeParallel( entries, (i == 0) ? null : pool);
+                zipOutput.close();
+                zipInput.close();
+            }
+            assertArrayEquals( Files.readAllBytes( outputFiles[0].toPath()), Files.readAllBytes( outputFiles[1].toPath()));
+
+            ZipInput zipInput = ZipInput.read( outputFiles[1].getAbsolutePath());
+            assertEquals( large.length - 7000, zipInput.getEntry( "new/07.bin").getData().length);
+
+            // Entries of a zip file sort by position, followed by new entries.
+            List<ZioEntry> inputOrder = new ArrayList<ZioEntry>( zipInput.getEntries().values());
+            Collections.reverse( inputOrder);
+            inputOrder.add( 0, new ZioEntry( "added.bin"));
+            Collections.sort( inputOrder, ZioEntry.INPUT_ORDER);
+            for (int i = 1; i < inputOrder.size() - 1; i++) {
+                assertTrue( inputOrder.get( i - 1).getLocalHeaderOffset() < inputOrder.get( i).getLocalHeaderOffset());
+            }
+            assertEquals( "added.bin", inputOrder.get( inputOrder.size() - 1).getName());
+            zipInput.close();
+
+            // Unchanged entries are copied verbatim, so copying the whole file reproduces it.
+            for (int i = 0; i < 2; i++) {
+                zipInput = ZipInput.read( outputFiles[1].getAbsolutePath());
+                ZipOutput zipOutput = new ZipOutput( outputFiles[0]);
+                zipOutput.setAlignmentPolicy( new AlignmentPolicy());
+                final List<Integer> counts = new ArrayList<Integer>();
+                zipOutput.writeParallel( zipInput.getEntries().values(), (i == 0) ? null : pool, new ZipOutput.WriteListener() {
+                    public boolean entryWritten( int count, int total) {
+                        counts.add( count);
+                        return true;
+                    }
+                });
+                zipOutput.close();
+                assertEquals( zipInput.getEntries().size(), counts.size());
+                assertEquals( counts.size(), (int)counts.get( counts.size() - 1));
+                zipInput.close();
+                assertArrayEquals( Files.readAllBytes( outputFiles[1].toPath()), Files.readAllBytes( outputFiles[0].toPath()));
+            }
+
+            // A stopped copy leaves a valid zip file of the entries written before it stopped.
+            for (int i = 0; i < 2; i++) {
+                List<ZioEntry> entries = new ArrayList<ZioEntry>();
+                for (int n = 0; n < 20; n++) {
+                    ZioEntry entry = new ZioEntry( String.format("new/%02d.bin", n));
+                    entry.getOutputStream().write( large, n * 1000, ZipOutput.PARALLEL_TASK_SIZE / 4);
+                    entries.add( entry);
+                }
+                ZipOutput zipOutput = new ZipOutput( outputFiles[0]);
+                zipOutput.writeParallel( entries, (i == 0) ? null : pool, new ZipOutput.WriteListener() {
+                    public boolean entryWritten( int count, int total) {
+                        return count < 5;
+                    }
+                });
+                zipOutput.close();
+                for (ZioEntry entry : entries) entry.release();
+
+                zipInput = ZipInput.read( outputFiles[0].getAbsolutePath());
+                int numEntries = zipInput.getEntries().size();
+                // Tasks that were already running when the copy stopped may have written more.
+                if (i == 0) assertEquals( 5, numEntries);
+                else assertTrue( numEntries >= 5);
+                for (int n = 0; n < numEntries; n++) {
+                    byte[] content = zipInput.getEntry( String.format("new/%02d.bin", n)).getData();
+                    assertArrayEquals( Arrays.copyOfRange( large, n * 1000, n * 1000 + content.length), content);
+                }
+                zipInput.close();
+                ZipFile zipFile = new ZipFile( outputFiles[0]);
+                assertEquals( numEntries, zipFile.size());
+                zipFile.close();
+            }
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void pipelineTest() {
+
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File sfile = new File(siblingFile);
+
+            // The same entries written with and without the write-behind stage, with some larger than its buffers.
+            File[] outputFiles = { new File(sfile.getParent(), "test_serial.zip"), new File(sfile.getParent(), "test_write_behind.zip") };
+            Random random = new Random( 42);
+            byte[] large = new byte[5 * ZipOutput.BUFFER_SIZE];
+            random.nextBytes( large);
+            for (int i = 0; i < 2; i++) {
+                ZipOutput zipOutput = new ZipOutput( outputFiles[i]);
+                if (i == 1) zipOutput.setWriteBehind( 2);
+                for (int n = 0; n < 30; n++) {
+                    ZioEntry entry = new ZioEntry( String.format("%02d.bin", n));
+                    entry.setTime( 0);
+                    entry.setCompression( (n % 2) * 8);
+                    entry.getOutputStream().write( large, n * 1000, (n % 10 == 3) ? large.length - n * 1000 : 1000 + n);
+                    zipOutput.write( entry);
+                }
+                zipOutput.close();
+                if (i == 1) assertEquals( outputFiles[1].length(), zipOutput.getWriteBehindStatistics().getBytes());
+            }
+            assertArrayEquals( Files.readAllBytes( outputFiles[0].toPath()), Files.readAllBytes( outputFiles[1].toPath()));
+
+            // Reading ahead with a buffer smaller than some entries returns the same content.
+            ZipInput zipInput = ZipInput.read( outputFiles[1].getAbsolutePath());
+            ZipInput checkInput = ZipInput.read( outputFiles[1].getAbsolutePath());
+            ReadAhead readAhead = new ReadAhead( zipInput.getEntries().values(), 2 * ZipOutput.BUFFER_SIZE);
+            int count = 0;
+            ZioEntry entry;
+            while ((entry = readAhead.next()) != null) {
+                InputStream data = readAhead.getInputStream();
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int num;
+                while ((num = data.read( buffer)) > 0) content.write( buffer, 0, num);
+                data.close();
+                assertArrayEquals( checkInput.getEntry( entry.getName()).getData(), content.toByteArray());
+                count += 1;
+            }
+            readAhead.close();
+            assertEquals( 30, count);
+            assertEquals( 27, readAhead.getStatistics().getItems());
+            zipInput.close();
+            checkInput.close();
+
+            // A failure reading ahead is reported by next() instead of leaving it waiting.
+            readAhead = new ReadAhead( zipInput.getEntries().values(), 2 * ZipOutput.BUFFER_SIZE);
+            try {
+                while (readAhead.next() != null);
+                fail( "Reading entries of a closed input should fail");
+            }
+            catch (Exception expected) {
+                getLogger().debug( "Expected: " + expected);
+            }
+            readAhead.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+
+    @Test
+    public void digestKernelTest() {
+
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File sfile = new File(siblingFile);
+            File outputFile = new File(sfile.getParent(), "test_digest.zip");
+
+            // Stored and deflated entries, small and large enough to be mapped.
+            Random random = new Random( 42);
+            byte[] content = new byte[2 * ZipInput.MAP_THRESHOLD];
+            for (int i = 0; i < content.length; i++) content[i] = (byte)('a' + random.nextInt( 8));
+            int[] sizes = { 0, 1, 1000, DigestKernel.BUFFER_SIZE + 1, content.length };
+            ZipOutput zipOutput = new ZipOutput( outputFile);
+            for (int i = 0; i < sizes.length; i++) {
+                for (int compression = 0; compression <= 8; compression += 8) {
+                    ZioEntry entry = new ZioEntry( String.format("%d.%d", sizes[i], compression));
+                    entry.setCompression( compression);
+                    entry.getOutputStream().write( content, 0, sizes[i]);
+                    zipOutput.write( entry);
+                }
+            }
+            zipOutput.close();
+
+            MessageDigest md = MessageDigest.getInstance( "SHA1");
+            DigestKernel kernel = new DigestKernel( MessageDigest.getInstance( "SHA1"));
+            ZipInput[] inputs = { ZipInput.read( outputFile.getAbsolutePath()), ZipInput.read( ZipSource.of( Files.readAllBytes( outputFile.toPath())), "memory", false) };
+            for (ZipInput zipInput : inputs) {
+                for (ZioEntry entry : zipInput.getEntries().values()) {
+                    byte[] expected = md.digest( entry.getData());
+                    assertArrayEquals( entry.getName(), expected, kernel.digest( entry));
+                    assertArrayEquals( entry.getName(), expected, kernel.digest( entry, ByteBuffer.wrap( entry.readRawData())));
+                }
+                zipInput.close();
+            }
+
+            // New entries are digested from their buffered data.
+            ZioEntry entry = new ZioEntry( "new.txt");
+            entry.getOutputStream().write( content, 0, 5000);
+            assertArrayEquals( md.digest( Arrays.copyOf( content, 5000)), kernel.digest( entry));
+
+            // Verifying gives the same digests, and detects a changed byte in a stored entry's data.
+            byte[] zipData = Files.readAllBytes( outputFile.toPath());
+            kernel.setVerify( true);
+            ZipInput zipInput = ZipInput.read( ZipSource.of( zipData), "memory", false);
+            ZioEntry stored = zipInput.getEntry( "1000.0");
+            assertArrayEquals( md.digest( stored.getData()), kernel.digest( stored));
+            zipData[(int)stored.getDataPosition() + 10] ^= 1;
+            try {
+                kernel.digest( stored);
+                fail( "Corrupt data was not detected");
+            }
+            catch (ZipException x) {
+                assertTrue( x.getMessage().startsWith( "Corrupt data in 1000.0"));
+            }
+            zipInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+
+    @Test
+    public void alignmentPolicyTest() {
+
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File sfile = new File(siblingFile);
+            File outputFile = new File(sfile.getParent(), "test_aligned.zip");
+            File realignedFile = new File(sfile.getParent(), "test_realigned.zip");
+
+            ZipOutput zipOutput = new ZipOutput( outputFile);
+            zipOutput.setAlignmentPolicy( new AlignmentPolicy());
+            String[] names = { "classes.dex", "lib/arm64-v8a/libfoo.so", "assets/data.bin", "lib/x86/libbar.so" };
+            for (String name : names) {
+                ZioEntry entry = new ZioEntry( name);
+                entry.setCompression( name.endsWith(".dex") ? 8 : 0);
+                entry.getOutputStream().write( (name + " content").getBytes());
+                zipOutput.write( entry);
+            }
+            zipOutput.close();
+
+            // Realign to 16 KB pages, twice, the second time shouldn't change anything.
+            AlignmentPolicy policy = new AlignmentPolicy();
+            policy.setNativeLibraryAlignment( AlignmentPolicy.PAGE_SIZE_16K);
+            policy.addRule( "assets/**", 64);
+            File input = outputFile;
+            for (int i = 0; i < 2; i++) {
+                ZipInput zipInput = ZipInput.read( input.getAbsolutePath());
+                File output = (i == 0) ? realignedFile : outputFile;
+                zipOutput = new ZipOutput( output);
+                zipOutput.setAlignmentPolicy( policy);
+                for (ZioEntry e : zipInput.getEntries().values()) zipOutput.write( e);
+                zipOutput.close();
+                zipInput.close();
+                input = output;
+            }
+            assertEquals( realignedFile.length(), outputFile.length());
+
+            ZipInput zipInput = ZipInput.read( outputFile.getAbsolutePath());
+            for (String name : names) {
+                ZioEntry entry = zipInput.getEntry( name);
+                assertEquals( name + " content", new String( entry.getData()));
+                entry.readLocalHeader();
+                int alignment = name.endsWith(".so") ? 16384 : name.startsWith("assets/") ? 64 : 1;
+                assertEquals( name, 0, entry.getDataPosition() % alignment);
+                // The alignment field is only in the local header.
+                assertEquals( 0, entry.getExtraData().length);
+            }
+            zipInput.close();
+
+            ZipInputStream zipIn = new ZipInputStream( new FileInputStream( outputFile));
+            ZipEntry zipEntry;
+            while ((zipEntry = zipIn.getNextEntry()) != null) {
+                byte[] extra = zipEntry.getExtra();
+                if (zipEntry.getMethod() == 0) {
+                    assertEquals( (byte)0x35, extra[0]);
+                    assertEquals( (byte)0xD9, extra[1]);
+                }
+                else assertNull( extra);
+            }
+            zipIn.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+
+    @Test
+    public void compressionPolicyTest() {
+        
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile(); 
+            File sfile = new File(siblingFile);
+            File outputFile = new File(sfile.getParent(), "test_policy.zip");
+
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < 10000; i++) builder.append( String.format("Line %d\n", i));
+            byte[] text = builder.toString().getBytes();
+            byte[] random = new byte[50000];
+            new Random( 42).nextBytes( random);
+
+            CompressionPolicy policy = new CompressionPolicy();
+            ZipOutput zipOutput = new ZipOutput( outputFile);
+            String[] names = { "text.txt", "lib/armeabi/libtext.so", "random.bin" };
+            byte[][] contents = { text, text, random };
+            for (int i = 0; i < names.length; i++) {
+                ZioEntry entry = new ZioEntry( names[i]);
+                entry.setCompressionPolicy( policy);
+                entry.getOutputStream().write( contents[i]);
+                zipOutput.write(entry);
+            }
+            zipOutput.close();
+
+            // Only the text file is compressed, the library by name and the random data by its entropy are stored.
+            ZipInput zipInput = ZipInput.read( outputFile.getAbsolutePath());
+            short[] expectedCompression = { 8, 0, 0 };
+            for (int i = 0; i < names.length; i++) {
+                ZioEntry entry = zipInput.getEntry( names[i]);
+                assertEquals( expectedCompression[i], entry.getCompression());
+                assertArrayEquals( contents[i], entry.getData());
+            }
+            assertTrue( policy.getBytesSaved() > 0);
+            getLogger().debug( "Compression policy: " + policy);
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+
+    @Test
+    public void codecPoolTest() {
+
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File sfile = new File(siblingFile);
+            File outputFile = new File(sfile.getParent(), "test_codec_pool.zip");
+
+            long liveBefore = CodecPool.getLiveCodecs();
+            long hitsBefore = CodecPool.getHits();
+
+            ZipOutput zipOutput = new ZipOutput( outputFile);
+            for (int i = 0; i < 500; i++) {
+                ZioEntry entry = new ZioEntry( String.format("e%03d.txt", i));
+                entry.getOutputStream().write( String.format("Entry %d of many", i).getBytes());
+                zipOutput.write(entry);
+            }
+            zipOutput.close();
+
+            ZipInput zipInput = ZipInput.read( outputFile.getAbsolutePath());
+            for (ZioEntry entry : zipInput.getEntries().values()) {
+                assertTrue( new String( entry.getData()).startsWith("Entry "));
+            }
+            zipInput.close();
+
+            // The codecs are reused rather than created for each entry.
+            assertTrue( CodecPool.getLiveCodecs() - liveBefore <= 2 * CodecPool.MAX_POOLED);
+            assertTrue( CodecPool.getHits() - hitsBefore >= 900);
+            getLogger().debug( "Codec pool: " + CodecPool.getStatistics());
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+    
+    @Test
+    public void streamedEntryTest() {
+
+        try {
+            setupLogging();
+
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < 20000; i++) builder.append( String.format("Line %d\n", i));
+            byte[] text = builder.toString().getBytes();
+
+            // Stream an entry of unknown length to a non-file output, between two ordinary entries.
+            ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+            ZipOutput zipOutput = new ZipOutput( zipBytes);
+            ZioEntry entry = new ZioEntry( "first.txt");
+            entry.getOutputStream().write( "first".getBytes());
+            zipOutput.write( entry);
+
+            OutputStream entryOut = zipOutput.openEntry( new ZioEntry( "streamed.txt"));
+            for (int i = 0; i < text.length; i += 1000) entryOut.write( text, i, Math.min( 1000, text.length - i));
+            try {
+                zipOutput.write( new ZioEntry( "too-soon.txt"));
+                fail( "Entry written while another one is open");
+            }
+            catch (IllegalStateException x) {}
+            entryOut.close();
+
+            entry = new ZioEntry( "last.txt");
+            entry.getOutputStream().write( "last".getBytes());
+            zipOutput.write( entry);
+            zipOutput.close();
+
+            // Readers that use the data descriptor, and those that use the central directory.
+            ZipInputStream zipIn = new ZipInputStream( new ByteArrayInputStream( zipBytes.toByteArray()));
+            int count = 0;
+            while (zipIn.getNextEntry() != null) count++;
+            assertEquals( 3, count);
+
+            ZipStreamInput streamInput = new ZipStreamInput( new ByteArrayInputStream( zipBytes.toByteArray()));
+            assertArrayEquals( text, streamInput.readEntries().get( "streamed.txt").getData());
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File outputFile = new File( new File( siblingFile).getParent(), "test_streamed.zip");
+            FileOutputStream fileOut = new FileOutputStream( outputFile);
+            zipBytes.writeTo( fileOut);
+            fileOut.close();
+            ZipInput zipInput = ZipInput.read( outputFile.getAbsolutePath());
+            assertEquals( 3, zipInput.getEntries().size());
+            assertArrayEquals( text, zipInput.getEntry( "streamed.txt").getData());
+            assertEquals( "last", new String( zipInput.getEntry( "last.txt").getData()));
+            zipInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+
+    @Test
+    public void memoryZipTest() {
+
+        try {
+            setupLogging();
+
+            // Read a zip file from a byte array, and merge it with a spool into a zip file in memory.
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            byte[] inputBytes = Files.readAllBytes( new File( siblingFile).toPath());
+            ZipInput zipInput = ZipInput.read( ZipSource.of( inputBytes), "simple_test.zip", false);
+            String testContent = new String( zipInput.getEntry( "test.txt").getData());
+
+            ByteArrayChannel spoolData = new ByteArrayChannel();
+            ZipOutput spool = new ZipOutput( spoolData);
+            ZioEntry entry = new ZioEntry( "spooled.txt");
+            entry.getOutputStream().write( "spooled".getBytes());
+            spool.write( entry);
+
+            ByteArrayChannel outputData = new ByteArrayChannel( 16);
+            ZipOutput zipOutput = new ZipOutput( outputData);
+            for (ZioEntry e : zipInput.getEntries().values()) zipOutput.write( e);
+            zipOutput.append( spool, spoolData.getSource());
+            zipOutput.close();
+            assertFalse( outputData.isOpen());
+
+            zipInput = ZipInput.read( outputData.getSource(), "output", true);
+            assertEquals( testContent, new String( zipInput.getEntry( "test.txt").getData()));
+            assertEquals( "spooled", new String( zipInput.getEntry( "spooled.txt").getData()));
+
+            // The result is readable by java.util.zip too.
+            ZipInputStream zipIn = new ZipInputStream( new ByteArrayInputStream( outputData.toByteArray()));
+            int count = 0;
+            while (zipIn.getNextEntry() != null) count++;
+            assertEquals( zipInput.getEntries().size(), count);
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+
     @Test
     public void mergeZipTest() {
         
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.File;
+import java.io.OutputStream;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class IndexCacheTest extends AbstractTest {
+
+    static final int NUM_ENTRIES = 1000;
+
+    private static void writeZip( File outputFile, String prefix) throws Exception
+    {
+        ZipOutput zipOutput = new ZipOutput( outputFile);
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            ZioEntry entry = new ZioEntry( String.format("%s/e%04d.txt", prefix, i));
+            OutputStream entryOut = entry.getOutputStream();
+            entryOut.write( (prefix + i).getBytes());
+            zipOutput.write(entry);
+        }
+        zipOutput.close();
+    }
+
+    @Test
+    public void indexCacheTest() {
+
+        try {
+            setupLogging();
+
+            // Sibling "simple_test.zip" is not read, just used to create the output in the same directory.
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File sfile = new File(siblingFile);
+            File outputFile = new File(sfile.getParent(), "test_index_cache.zip");
+            writeZip( outputFile, "a");
+
+            IndexCache cache = new IndexCache();
+            File cacheFile = cache.getCacheFile( outputFile.getAbsolutePath());
+            cacheFile.delete();
+
+            // The first read builds and saves the index, the second one loads it.
+            ZipInput zipInput = ZipInput.read( outputFile.getAbsolutePath(), cache);
+            assertEquals( NUM_ENTRIES, zipInput.getIndex().size());
+            long directoryOffset = zipInput.centralEnd.centralStartOffset;
+            zipInput.close();
+            assertTrue( cacheFile.isFile());
+            assertEquals( 1, cache.getMisses());
+            assertEquals( 1, cache.getWrites());
+
+            zipInput = ZipInput.read( outputFile.getAbsolutePath(), cache);
+            assertEquals( 1, cache.getHits());
+            assertEquals( directoryOffset, zipInput.centralEnd.centralStartOffset);
+            assertEquals( "", zipInput.centralEnd.fileComment);
+            assertEquals( NUM_ENTRIES, zipInput.getEntries().size());
+            assertEquals( "a123", new String( zipInput.getEntry("a/e0123.txt").getData()));
+            assertNull( zipInput.getEntry("b/e0123.txt"));
+            assertEquals( NUM_ENTRIES, zipInput.list("a/").size());
+            zipInput.close();
+
+            // Replace the file, the saved index must not be used.
+            writeZip( outputFile, "b");
+            outputFile.setLastModified( cacheFile.lastModified() + 2000);
+            zipInput = ZipInput.read( outputFile.getAbsolutePath(), cache);
+            assertEquals( 1, cache.getHits());
+            assertEquals( 2, cache.getMisses());
+            assertNull( zipInput.getEntry("a/e0123.txt"));
+            assertEquals( "b123", new String( zipInput.getEntry("b/e0123.txt").getData()));
+            zipInput.close();
+
+            cacheFile.delete();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
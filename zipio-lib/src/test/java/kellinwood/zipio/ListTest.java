@@ -91,6 +91,29 @@ public class ListTest extends AbstractTest {
             assertTrue( list.contains( "A.txt"));
             assertTrue( list.contains( "B.txt"));
             
+            DirectoryTree tree = zipInput.getDirectoryTree();
+            assertEquals( 4, tree.getEntryCount("/"));
+            assertEquals( 2, tree.getEntryCount("C/"));
+            assertEquals( aContentText.length() + bContentText.length(), tree.getTotalSize("C/"));
+            assertEquals( "C/A.txt", tree.getEntryNames("C/").get(0));
+            assertEquals( 0, tree.list("D/").size());
+
+            // Changes to the entries are listed.
+            ZioEntry moved = zipInput.getEntries().remove( "C/B.txt");
+            zipInput.getEntries().put( "D/B.txt", moved);
+            assertEquals( 1, zipInput.list("C/").size());
+            assertTrue( zipInput.list("/").contains( "D/"));
+            assertTrue( zipInput.list("D/").contains( "B.txt"));
+
+            // Same again with the compact index.
+            zipInput = ZipInput.read( outputFile.getAbsolutePath(), true);
+            assertNotNull( zipInput.getIndex());
+            assertEquals( 4, zipInput.getEntries().size());
+            assertEquals( 3, zipInput.list("/").size());
+            assertEquals( 2, zipInput.list("C/").size());
+            assertEquals( bContentText, new String( zipInput.getEntry("C/B.txt").getData()));
+            assertNull( zipInput.getEntry("C/D.txt"));
+            
         }
         catch (Exception x) {
             getLogger().error( x.getMessage(), x);
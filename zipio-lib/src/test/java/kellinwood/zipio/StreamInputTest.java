@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class StreamInputTest extends AbstractTest {
+
+    private static byte[] readAll( InputStream in) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int numRead;
+        while ((numRead = in.read( buffer)) > 0) out.write( buffer, 0, numRead);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void dataDescriptorTest() {
+
+        try {
+            setupLogging();
+
+            // java.util.zip writes deflated entries with the sizes in a data descriptor after the data.
+            ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+            ZipOutputStream zipOut = new ZipOutputStream( zipBytes);
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < 20; i++) {
+                builder.append( String.format("Line %d\n", i * i));
+                zipOut.putNextEntry( new ZipEntry( String.format("dir/file%02d.txt", i)));
+                zipOut.write( builder.toString().getBytes());
+                zipOut.closeEntry();
+            }
+            zipOut.putNextEntry( new ZipEntry( "empty.txt"));
+            zipOut.closeEntry();
+            zipOut.close();
+
+            ZipStreamInput input = new ZipStreamInput( new ByteArrayInputStream( zipBytes.toByteArray()));
+            ZioEntry entry = input.getNextEntry();
+            assertEquals( "dir/file00.txt", entry.getName());
+            assertEquals( "Line 0\n", new String( readAll( input.getInputStream())));
+
+            // Skip the unread entries.
+            int count = 1;
+            while ((entry = input.getNextEntry()) != null) count++;
+            assertEquals( 21, count);
+
+            input = new ZipStreamInput( new ByteArrayInputStream( zipBytes.toByteArray()));
+            Map<String,ZioEntry> entries = input.readEntries();
+            assertEquals( 21, entries.size());
+            entry = entries.get( "dir/file19.txt");
+            assertEquals( builder.toString(), new String( entry.getData()));
+            assertEquals( builder.length(), entry.getSize());
+            assertEquals( 0, entries.get( "empty.txt").getSize());
+            for (ZioEntry e : entries.values()) e.release();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.zip.ZipFile;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class Zip64Test extends AbstractTest {
+
+    // More entries than fit in the 16-bit counts of the end of central directory record.
+    static final int NUM_ENTRIES = 70000;
+
+    @Test
+    public void manyEntriesTest() {
+
+        try {
+            setupLogging();
+
+            // Sibling "simple_test.zip" is not read, just used to create the output in the same directory.
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File sfile = new File(siblingFile);
+            File outputFile = new File(sfile.getParent(), "test_zip64.zip");
+
+            ZipOutput zipOutput = new ZipOutput( outputFile);
+            for (int i = 0; i < NUM_ENTRIES; i++) {
+                ZioEntry entry = new ZioEntry( String.format("e%05d", i));
+                entry.setCompression(0);
+                OutputStream entryOut = entry.getOutputStream();
+                entryOut.write( Integer.toString(i).getBytes());
+                zipOutput.write(entry);
+            }
+            zipOutput.close();
+
+            ZipInput zipInput = ZipInput.read( outputFile.getAbsolutePath());
+            assertTrue( zipInput.centralEnd.isZip64());
+            assertEquals( NUM_ENTRIES, zipInput.getEntries().size());
+            assertEquals( "69999", new String( zipInput.getEntry("e69999").getData()));
+            zipInput.close();
+
+            zipInput = ZipInput.read( outputFile.getAbsolutePath(), true);
+            assertEquals( NUM_ENTRIES, zipInput.getIndex().size());
+            for (int i = 0; i < NUM_ENTRIES; i += 997) {
+                String name = String.format("e%05d", i);
+                assertEquals( Integer.toString(i), new String( zipInput.getEntry( name).getData()));
+            }
+            zipInput.close();
+
+            // Make sure other readers agree.
+            ZipFile zipFile = new ZipFile( outputFile);
+            assertEquals( NUM_ENTRIES, zipFile.size());
+            zipFile.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
@@ -44,6 +44,7 @@ import kellinwood.logging.log4j.Log4jLoggerFactory;
 import kellinwood.security.zipsigner.ZipSigner;
 import kellinwood.security.zipsigner.optional.CustomKeySigner;
 import kellinwood.security.zipsigner.optional.KeyStoreFileManager;
+import kellinwood.zipio.AlignmentPolicy;
 
 
 
@@ -64,7 +65,8 @@ public class Main
             "java -jar zipsigner-cmdline-<version>.jar input.zip output-signed.zip (signs in auto-testkey mode)\n\n"+
             "java -jar zipsigner-cmdline-<version>.jar -m <keyMode> input.zip output-signed.zip (signs in specified mode)\n\n"+
             "java -jar zipsigner-cmdline-<version>.jar -s <keystore file> input.zip output-signed.zip (signs with first key in the keystore)\n\n"+
-            "java -jar zipsigner-cmdline-<version>.jar -s <keystore file> -a <key alias> input.zip output-signed.zip (signs with specified key in keystore)",
+            "java -jar zipsigner-cmdline-<version>.jar -s <keystore file> -a <key alias> input.zip output-signed.zip (signs with specified key in keystore)\n\n"+
+            "java -jar zipsigner-cmdline-<version>.jar -m none -l 16384 input.apk output-aligned.apk (only realigns, native libraries on 16 KB pages)",
                 options, "");
 
         System.exit(1);
@@ -105,6 +107,11 @@ public class Main
             
             Option aliasOption = new Option("a", "alias", false, "Alias for key/cert in the keystore");
             aliasOption.setArgs(1);
+
+            Option alignOption = new Option("l", "align", false, "Align uncompressed native libraries to pages of the given size, e.g., 4096 or 16384");
+            alignOption.setArgs(1);
+
+            Option verifyOption = new Option("v", "verify", false, "Check the CRC and size of each input entry while signing, fail if the input is corrupt");
             
             options.addOption( helpOption);
             options.addOption( modeOption);
@@ -114,6 +121,8 @@ public class Main
             options.addOption( pwOption);
             options.addOption( keystoreOption);
             options.addOption( aliasOption);
+            options.addOption( alignOption);
+            options.addOption( verifyOption);
 
             Parser parser = new BasicParser();
 
@@ -164,6 +173,23 @@ public class Main
 
             signer.loadProvider( "org.bouncycastle.jce.provider.BouncyCastleProvider");
 
+            if (cmdLine.hasOption( alignOption.getOpt())) {
+                int alignment = 0;
+                try {
+                    alignment = Integer.parseInt( alignOption.getValue());
+                }
+                catch (NumberFormatException x) {}
+                if (alignment <= 0 || alignment > 32768 || Integer.bitCount( alignment) != 1) {
+                    log.error("Alignment must be a power of two up to 32768: " + alignOption.getValue());
+                    usage( options);
+                }
+                AlignmentPolicy alignmentPolicy = new AlignmentPolicy();
+                alignmentPolicy.setNativeLibraryAlignment( alignment);
+                signer.setAlignmentPolicy( alignmentPolicy);
+            }
+
+            if (cmdLine.hasOption( verifyOption.getOpt())) signer.setVerifyInput( true);
+
 
             PrivateKey privateKey = null;            
             if (cmdLine.hasOption( keyOption.getOpt())) {
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.security.zipsigner;
+
+import kellinwood.logging.Logger;
+import kellinwood.zipio.DigestKernel;
+import kellinwood.zipio.ZioEntry;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Computes the SHA1 digests of zip entries on the threads of a ForkJoinPool.  Each
+ * worker thread has its own DigestKernel, with its MessageDigest and buffers, and
+ * inflates with Inflaters from its CodecPool.  Entries are
+ * submitted largest first so that a big entry doesn't end up running alone after
+ * all the others are done.
+ */
+public class ParallelDigester
+{
+    static Logger log = Logger.getLogger(ParallelDigester.class);
+
+    private final ForkJoinPool pool;
+    private volatile boolean canceled = false;
+    private volatile boolean verify = false;
+    // The first exception thrown by a worker, after which the entries not started yet are skipped.
+    private volatile Exception failure = null;
+
+    private final ThreadLocal<DigestKernel> kernels = new ThreadLocal<DigestKernel>();
+
+    public ParallelDigester( ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /** Submit the entries for digesting.  The returned tasks are in the same order as the entries. */
+    public List<ForkJoinTask<byte[]>> submit( List<ZioEntry> entries)
+    {
+        List<Integer> bySize = new ArrayList<Integer>(entries.size());
+        for (int i = 0; i < entries.size(); i++) bySize.add(i);
+
+        final List<ZioEntry> list = entries;
+        Collections.sort( bySize, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare( list.get(b).getCompressedSize(), list.get(a).getCompressedSize());
+            }
+        });
+
+        List<ForkJoinTask<byte[]>> tasks = new ArrayList<ForkJoinTask<byte[]>>(Collections.<ForkJoinTask<byte[]>>nCopies( entries.size(), null));
+        for (int i : bySize) {
+            final ZioEntry entry = entries.get(i);
+            tasks.set( i, pool.submit( new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    if (canceled || failure != null) return null;
+                    try {
+                        return digest( entry);
+                    }
+                    catch (Exception x) {
+                        if (failure == null) failure = x;
+                        throw x;
+                    }
+                }
+            }));
+        }
+        return tasks;
+    }
+
+    /** Wait for the task's digest.  Exceptions thrown by the worker are rethrown.  Returns null if
+     *  the entry was skipped because the digester was canceled or another entry failed, see
+     *  checkFailure().
+     */
+    public static byte[] getDigest( ForkJoinTask<byte[]> task)
+        throws IOException, GeneralSecurityException
+    {
+        try {
+            return task.get();
+        }
+        catch (InterruptedException x) {
+            throw new IOException( x.getMessage(), x);
+        }
+        catch (ExecutionException x) {
+            throw rethrow( x.getCause());
+        }
+    }
+
+    /** Rethrow the first exception thrown by a worker, if any, e.g., to stop waiting for the
+     *  remaining digests as soon as one entry has failed verification.
+     */
+    public void checkFailure() throws IOException, GeneralSecurityException
+    {
+        if (failure != null) throw rethrow( failure);
+    }
+
+    private static RuntimeException rethrow( Throwable cause) throws IOException, GeneralSecurityException
+    {
+        if (cause instanceof IOException) throw (IOException)cause;
+        if (cause instanceof GeneralSecurityException) throw (GeneralSecurityException)cause;
+        if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+        throw new IllegalStateException( cause.getMessage(), cause);
+    }
+
+    /** Stop digesting entries that have not started yet. */
+    public void cancel( List<ForkJoinTask<byte[]>> tasks)
+    {
+        canceled = true;
+        for (ForkJoinTask<byte[]> task : tasks) task.cancel( false);
+    }
+
+    /** Check the CRC-32 and size of each entry's content while digesting it, see DigestKernel.setVerify(). */
+    public void setVerify( boolean verify) {
+        this.verify = verify;
+    }
+
+    private DigestKernel getKernel() throws NoSuchAlgorithmException
+    {
+        DigestKernel kernel = kernels.get();
+        if (kernel == null) {
+            kernel = new DigestKernel( MessageDigest.getInstance("SHA1"));
+            kernels.set( kernel);
+        }
+        kernel.setVerify( verify);
+        return kernel;
+    }
+
+    /** Compute the SHA1 digest of the entry's uncompressed content on the current thread. */
+    public byte[] digest( ZioEntry entry) throws IOException, GeneralSecurityException
+    {
+        if (log.isDebugEnabled()) log.debug( "Digesting " + entry.getName());
+        return getKernel().digest( entry);
+    }
+}
@@ -29,9 +29,17 @@
 package kellinwood.security.zipsigner;
 
 import kellinwood.logging.Logger;
+import kellinwood.zipio.AlignmentPolicy;
+import kellinwood.zipio.ByteArrayChannel;
+import kellinwood.zipio.DigestKernel;
+import kellinwood.zipio.IndexCache;
+import kellinwood.zipio.ReadAhead;
+import kellinwood.zipio.StageStatistics;
 import kellinwood.zipio.ZioEntry;
 import kellinwood.zipio.ZipInput;
 import kellinwood.zipio.ZipOutput;
+import kellinwood.zipio.ZipSource;
+import kellinwood.zipio.ZipStreamInput;
 
 import javax.crypto.Cipher;
 import javax.crypto.EncryptedPrivateKeyInfo;
@@ -40,6 +48,7 @@ import javax.crypto.spec.PBEKeySpec;
 import java.io.*;
 import java.lang.reflect.Method;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
@@ -48,9 +57,12 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
 import java.util.regex.Pattern;
 
 /**
@@ -64,6 +76,17 @@ public class ZipSigner
 {
 
     private boolean canceled = false;
+    private boolean singlePass = false;
+    private ForkJoinPool digestPool = null;
+    private ForkJoinPool copyPool = null;
+    private boolean compactIndex = false;
+    private IndexCache indexCache = null;
+    private AlignmentPolicy alignmentPolicy = null;
+    private long readAheadBytes = 0;
+    private int writeBehindBuffers = 0;
+    private boolean verifyInput = false;
+    private StageStatistics readAheadStatistics = null;
+    private StageStatistics writeBehindStatistics = null;
 
     private ProgressHelper progressHelper = new ProgressHelper();
     private ResourceAdapter resourceAdapter = new DefaultResourceAdapter();
@@ -107,6 +130,124 @@ public class ZipSigner
         
     }
 
+    /** When enabled, each input entry is read only once during signing.  The entries are copied to a
+     *  temporary spool file (in the output's directory) while their content is digested for the 
+     *  manifest, then the signature files and the spooled entries are written to the output.
+     */
+    public void setSinglePass(boolean singlePass) {
+        this.singlePass = singlePass;
+    }
+
+    public boolean isSinglePass() {
+        return singlePass;
+    }
+
+    /** Compute the manifest digests on the threads of the given pool instead of the calling thread.
+     *  Use null (the default) to digest serially.  The output is the same either way.  This does not
+     *  apply to single pass mode, where the digests are computed while the entries are copied.
+     */
+    public void setDigestPool(ForkJoinPool digestPool) {
+        this.digestPool = digestPool;
+    }
+
+    public ForkJoinPool getDigestPool() {
+        return digestPool;
+    }
+
+    /** Copy the entries to the output on the threads of the given pool, each one written to its
+     *  planned position in the file, see ZipOutput.writeParallel().  Use null (the default) to copy
+     *  serially.  The output is the same either way.  This does not apply to single pass mode, nor
+     *  to outputs that aren't files.
+     */
+    public void setCopyPool(ForkJoinPool copyPool) {
+        this.copyPool = copyPool;
+    }
+
+    public ForkJoinPool getCopyPool() {
+        return copyPool;
+    }
+
+    /** When enabled, the input's central directory is kept in a compact index rather than as a 
+     *  ZioEntry object per entry, which saves heap when signing files with a great many entries.
+     */
+    public void setCompactIndex(boolean compactIndex) {
+        this.compactIndex = compactIndex;
+    }
+
+    public boolean isCompactIndex() {
+        return compactIndex;
+    }
+
+    /** When set, the input is read with a compact index which is saved in the cache, so that signing
+     *  the same file again doesn't have to parse its central directory.
+     */
+    public void setIndexCache(IndexCache indexCache) {
+        this.indexCache = indexCache;
+    }
+
+    public IndexCache getIndexCache() {
+        return indexCache;
+    }
+
+    /** Align the stored entries of the output as chosen by the policy, e.g., native libraries on
+     *  page boundaries so they can be loaded without being extracted.  With the "none" key mode the
+     *  input is only realigned, its entries (including any signature files) are copied unchanged.
+     *  Use null (the default) to zipalign stored entries to 4 bytes.
+     */
+    public void setAlignmentPolicy(AlignmentPolicy alignmentPolicy) {
+        this.alignmentPolicy = alignmentPolicy;
+    }
+
+    public AlignmentPolicy getAlignmentPolicy() {
+        return alignmentPolicy;
+    }
+
+    /** Read the data of upcoming entries on a separate thread while the manifest digests are
+     *  computed, buffering at most maxBufferedBytes, see ReadAhead.  Use 0 (the default) to read each
+     *  entry when it is digested.  This does not apply with a digest pool or in single pass mode.
+     */
+    public void setReadAhead(long maxBufferedBytes) {
+        this.readAheadBytes = maxBufferedBytes;
+    }
+
+    public long getReadAhead() {
+        return readAheadBytes;
+    }
+
+    /** Write the output on a separate thread with up to the given number of pending buffers, see
+     *  ZipOutput.setWriteBehind().  Use 0 (the default) to write on the calling thread.
+     */
+    public void setWriteBehind(int maxPendingBuffers) {
+        this.writeBehindBuffers = maxPendingBuffers;
+    }
+
+    public int getWriteBehind() {
+        return writeBehindBuffers;
+    }
+
+    /** When enabled, the CRC-32 and size of each input entry's content are computed while it is
+     *  digested for the manifest, from the same data, and checked against the input's central
+     *  directory.  Signing fails with a ZipException at the first corrupt entry, rather than signing
+     *  corrupt data.  Default false.
+     */
+    public void setVerifyInput(boolean verifyInput) {
+        this.verifyInput = verifyInput;
+    }
+
+    public boolean isVerifyInput() {
+        return verifyInput;
+    }
+
+    /** Returns the counters of the read-ahead stage of the last signing, or null if it wasn't used. */
+    public StageStatistics getReadAheadStatistics() {
+        return readAheadStatistics;
+    }
+
+    /** Returns the counters of the write-behind stage of the last signing, or null if it wasn't used. */
+    public StageStatistics getWriteBehindStatistics() {
+        return writeBehindStatistics;
+    }
+
     public ResourceAdapter getResourceAdapter() {
         return resourceAdapter;
     }
@@ -366,16 +507,34 @@ public class ZipSigner
         }
     }
 
-    /** Add the SHA1 of every file to the manifest, creating it if necessary. */
-    private Manifest addDigestsToManifest(Map<String,ZioEntry> entries)
-        throws IOException, GeneralSecurityException 
+    /** Returns true if the entry is digested in the manifest and copied to the signed output. */
+    private boolean isSignedEntry( ZioEntry entry)
+    {
+        String name = entry.getName();
+        return !entry.isDirectory() && !name.equals(JarFile.MANIFEST_NAME) &&
+            !name.equals(CERT_SF_NAME) && !name.equals(CERT_RSA_NAME) &&
+            (stripPattern == null ||
+             !stripPattern.matcher(name).matches());
+    }
+
+    /** Read the input's manifest, if it has one. */
+    private Manifest readInputManifest(Map<String,ZioEntry> entries)
+        throws IOException
     {
         Manifest input = null;
         ZioEntry manifestEntry = entries.get(JarFile.MANIFEST_NAME);
         if (manifestEntry != null) {
             input = new Manifest();
-            input.read( manifestEntry.getInputStream());
+            InputStream data = manifestEntry.getInputStream();
+            input.read( data);
+            data.close();
         }
+        return input;
+    }
+
+    /** Create the output manifest, with main attributes copied from the input manifest if present. */
+    private Manifest createOutputManifest(Manifest input)
+    {
         Manifest output = new Manifest();
         Attributes main = output.getMainAttributes();
         if (input != null) {
@@ -384,11 +543,32 @@ public class ZipSigner
             main.putValue("Manifest-Version", "1.0");
             main.putValue("Created-By", "1.0 (Android SignApk)");
         }
+        return output;
+    }
+
+    /** Add an entry's digest to the output manifest, keeping any other attributes from the input manifest. */
+    private void addManifestEntry(Manifest input, Manifest output, String name, byte[] digest)
+    {
+        Attributes attr = null;
+        if (input != null) {
+            java.util.jar.Attributes inAttr = input.getAttributes(name); 
+            if (inAttr != null) attr = new Attributes( inAttr);
+        }
+        if (attr == null) attr = new Attributes();
+        attr.putValue("SHA1-Digest", Base64.encode(digest));
+        output.getEntries().put(name, attr);
+    }
+
+    /** Add the SHA1 of every file to the manifest, creating it if necessary. */
+    private Manifest addDigestsToManifest(Map<String,ZioEntry> entries)
+        throws IOException, GeneralSecurityException 
+    {
+        Manifest input = readInputManifest(entries);
+        Manifest output = createOutputManifest(input);
 
         // BASE64Encoder base64 = new BASE64Encoder();
-        MessageDigest md = MessageDigest.getInstance("SHA1");
-        byte[] buffer = new byte[512];
-        int num;
+        DigestKernel kernel = new DigestKernel(MessageDigest.getInstance("SHA1"));
+        kernel.setVerify(verifyInput);
 
         // We sort the input entries by name, and add them to the
         // output manifest in sorted order.  We expect that the output
@@ -397,33 +577,147 @@ public class ZipSigner
         TreeMap<String, ZioEntry> byName = new TreeMap<String, ZioEntry>();
         byName.putAll( entries);
 
+        if (digestPool != null) {
+            addDigestsToManifest(input, output, byName.values());
+            return output;
+        }
+
+        // The entries are read in the order they are in the input, so that the reads are
+        // sequential, and their digests are then added to the manifest in name order.
+        List<ZioEntry> signedEntries = new ArrayList<ZioEntry>();
+        for (ZioEntry entry: byName.values()) {
+            if (isSignedEntry(entry)) signedEntries.add(entry);
+        }
+        List<ZioEntry> inputOrder = new ArrayList<ZioEntry>(signedEntries);
+        Collections.sort(inputOrder, ZioEntry.INPUT_ORDER);
+
+        ReadAhead readAhead = null;
+        if (readAheadBytes > 0) {
+            readAhead = new ReadAhead(inputOrder, readAheadBytes);
+            readAheadStatistics = readAhead.getStatistics();
+        }
+
         boolean debug = log.isDebugEnabled();
+        Map<String,byte[]> digests = new HashMap<String,byte[]>();
+        try {
+            for (ZioEntry entry: inputOrder) {
+                if (canceled) break;
+                progressHelper.progress( ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.GENERATING_MANIFEST));
+                ByteBuffer rawData = null;
+                if (readAhead != null) {
+                    readAhead.next();
+                    rawData = readAhead.getRawData();
+                }
+                byte[] digest = (rawData != null) ? kernel.digest(entry, rawData) : kernel.digest(entry);
+                digests.put(entry.getName(), digest);
+            }
+        }
+        finally {
+            if (readAhead != null) readAhead.close();
+        }
+        if (canceled) return output;
+
         if (debug) log.debug("Manifest entries:");
-        for (ZioEntry entry: byName.values()) {
-            if (canceled) break;
+        for (ZioEntry entry: signedEntries) {
             String name = entry.getName();
             if (debug) log.debug(name);
-            if (!entry.isDirectory() && !name.equals(JarFile.MANIFEST_NAME) &&
-                    !name.equals(CERT_SF_NAME) && !name.equals(CERT_RSA_NAME) &&
-                    (stripPattern == null ||
-                     !stripPattern.matcher(name).matches()))
-            {
+            addManifestEntry(input, output, name, digests.get(name));
+        }
 
+        return output;
+    }
+
+    /** Compute the digests on the threads of the digest pool, then add them to the manifest in sorted order. */
+    private void addDigestsToManifest(Manifest input, Manifest output, Collection<ZioEntry> byName)
+        throws IOException, GeneralSecurityException
+    {
+        List<ZioEntry> signedEntries = new ArrayList<ZioEntry>();
+        for (ZioEntry entry: byName) {
+            if (isSignedEntry(entry)) signedEntries.add(entry);
+        }
+
+        ParallelDigester digester = new ParallelDigester(digestPool);
+        digester.setVerify(verifyInput);
+        List<ForkJoinTask<byte[]>> tasks = digester.submit(signedEntries);
+        boolean completed = false;
+        try {
+            for (int i = 0; i < signedEntries.size(); i++) {
+                if (canceled) break;
+                // Fail as soon as any entry has failed, not when its turn comes.
+                digester.checkFailure();
+                byte[] digest = ParallelDigester.getDigest(tasks.get(i));
+                if (digest == null) {
+                    digester.checkFailure();
+                    break;
+                }
                 progressHelper.progress( ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.GENERATING_MANIFEST));
-                InputStream data = entry.getInputStream();
-                while ((num = data.read(buffer)) > 0) {
-                    md.update(buffer, 0, num);
+                addManifestEntry(input, output, signedEntries.get(i).getName(), digest);
+            }
+            completed = true;
+        }
+        finally {
+            if (canceled || !completed) digester.cancel(tasks);
+        }
+    }
+
+    /**
+     * Single pass version of addDigestsToManifest() and copyFiles().  Each
+     * entry is copied to the spool while its uncompressed content is
+     * digested, so the input data is only read once.
+     */
+    private Manifest digestAndSpoolFiles(Map<String,ZioEntry> entries, ZipOutput spool, long timestamp)
+        throws IOException, GeneralSecurityException
+    {
+        Manifest input = readInputManifest(entries);
+        Manifest output = createOutputManifest(input);
+
+        final MessageDigest md = MessageDigest.getInstance("SHA1");
+        final CRC32 crc = new CRC32();
+        final long[] size = new long[1];
+        OutputStream digestStream = new OutputStream() {
+            @Override
+            public void write(int b) {
+                md.update((byte)b);
+                if (verifyInput) {
+                    crc.update(b);
+                    size[0] += 1;
                 }
-                    
-                Attributes attr = null;
-                if (input != null) {
-                    java.util.jar.Attributes inAttr = input.getAttributes(name); 
-                    if (inAttr != null) attr = new Attributes( inAttr);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                md.update(b, off, len);
+                if (verifyInput) {
+                    crc.update(b, off, len);
+                    size[0] += len;
                 }
-                if (attr == null) attr = new Attributes();
-                attr.putValue("SHA1-Digest", Base64.encode(md.digest()));
-                output.getEntries().put(name, attr);
             }
+        };
+
+        TreeMap<String, ZioEntry> byName = new TreeMap<String, ZioEntry>();
+        byName.putAll( entries);
+
+        int i = 1;
+        int count = 0;
+        for (ZioEntry entry: byName.values()) {
+            if (isSignedEntry(entry)) count += 1;
+        }
+
+        for (ZioEntry entry: byName.values()) {
+            if (canceled) break;
+            if (!isSignedEntry(entry)) continue;
+
+            progressHelper.progress( ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.GENERATING_MANIFEST));
+            progressHelper.progress( ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.COPYING_ZIP_ENTRY, i, count));
+            i += 1;
+
+            entry.setTime(timestamp);
+            crc.reset();
+            size[0] = 0;
+            spool.write(entry, digestStream);
+            // Copying the entry keeps the CRC and size from the input's central directory.
+            if (verifyInput && entry.getZipInput() != null) DigestKernel.verify(entry, (int)crc.getValue(), size[0]);
+            addManifestEntry(input, output, entry.getName(), md.digest());
         }
 
         return output;
@@ -528,16 +822,13 @@ public class ZipSigner
         Map<String, Attributes> entries = manifest.getEntries();
         List<String> names = new ArrayList<String>(entries.keySet());
         Collections.sort(names);
-        int i = 1;
+        List<ZioEntry> copied = new ArrayList<ZioEntry>(names.size());
         for (String name : names) {
-            if (canceled) break;
-            progressHelper.progress(ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.COPYING_ZIP_ENTRY, i, names.size()));
-            i += 1;
             ZioEntry inEntry = input.get(name);
             inEntry.setTime(timestamp);
-            output.write(inEntry);
-
+            copied.add(inEntry);
         }
+        output.writeParallel(copied, copyPool, copyProgress);
     }
 
     /**
@@ -546,15 +837,17 @@ public class ZipSigner
     private void copyFiles(Map<String,ZioEntry> input, ZipOutput output)
         throws IOException 
     {
-        int i = 1;
-        for (ZioEntry inEntry : input.values()) {
-            if (canceled) break;
-            progressHelper.progress( ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.COPYING_ZIP_ENTRY, i, input.size()));
-            i += 1;
-            output.write(inEntry);
-        }
+        output.writeParallel(input.values(), copyPool, copyProgress);
     }
 
+    // Reports the progress of copyFiles() as the entries are written, and stops it if canceled.
+    private final ZipOutput.WriteListener copyProgress = new ZipOutput.WriteListener() {
+        public boolean entryWritten(int count, int total) {
+            progressHelper.progress(ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.COPYING_ZIP_ENTRY, count, total));
+            return !canceled;
+        }
+    };
+
     /**
      * @deprecated - use the version that takes the passwords as char[]
      */
@@ -638,10 +931,45 @@ public class ZipSigner
         progressHelper.initProgress();        
         progressHelper.progress( ProgressEvent.PRORITY_IMPORTANT, resourceAdapter.getString(ResourceAdapter.Item.PARSING_CENTRAL_DIRECTORY));
         
-        ZipInput input = ZipInput.read( inputZipFilename);
+        ZipInput input = (indexCache != null) ? ZipInput.read( inputZipFilename, indexCache) : ZipInput.read( inputZipFilename, compactIndex);
         signZip( input.getEntries(), new FileOutputStream( outputZipFilename), outputZipFilename);
     }
     
+    /** Sign a zip file read from a stream, e.g., a pipe, without landing it on disk first.  The
+     *  entries' data is buffered in memory up to the EntryBuffer spill threshold per entry, and in
+     *  temporary files beyond that.  The stream is not closed.
+     */
+    public void signZip( InputStream inputStream, String outputZipFilename)
+        throws IOException, GeneralSecurityException
+    {
+        progressHelper.initProgress();
+        progressHelper.progress( ProgressEvent.PRORITY_IMPORTANT, resourceAdapter.getString(ResourceAdapter.Item.PARSING_CENTRAL_DIRECTORY));
+
+        Map<String,ZioEntry> entries = new ZipStreamInput( inputStream).readEntries();
+        try {
+            signZip( entries, new FileOutputStream( outputZipFilename), outputZipFilename);
+        }
+        finally {
+            for (ZioEntry entry : entries.values()) entry.release();
+        }
+    }
+
+    /** Sign a zip file held in memory and return the signed zip file.  Nothing is written to disk,
+     *  the single-pass spool is kept in memory too, so this suits small archives, e.g., ones
+     *  received over the network.
+     */
+    public byte[] signZip( byte[] inputZip)
+        throws IOException, GeneralSecurityException
+    {
+        progressHelper.initProgress();
+        progressHelper.progress( ProgressEvent.PRORITY_IMPORTANT, resourceAdapter.getString(ResourceAdapter.Item.PARSING_CENTRAL_DIRECTORY));
+
+        ZipInput input = ZipInput.read( ZipSource.of( inputZip), "input", compactIndex);
+        ByteArrayOutputStream output = new ByteArrayOutputStream( inputZip.length + 16384);
+        signZip( input.getEntries(), output, null, true);
+        return output.toByteArray();
+    }
+
     /** Sign the 
      *  and signature block template.  The signature block template
      *  parameter may be null, but if so
@@ -649,6 +977,12 @@ public class ZipSigner
      */
     public void signZip( Map<String,ZioEntry> zioEntries, OutputStream outputStream, String outputZipFilename)
         throws IOException, GeneralSecurityException    
+    {
+        signZip( zioEntries, outputStream, outputZipFilename, false);
+    }
+
+    private void signZip( Map<String,ZioEntry> zioEntries, OutputStream outputStream, String outputZipFilename, boolean spoolInMemory)
+        throws IOException, GeneralSecurityException
     {
         boolean debug =  log.isDebugEnabled();
         
@@ -659,8 +993,10 @@ public class ZipSigner
             
             // Auto-determine which keys to use
             String keyName = this.autoDetectKey( keymode, zioEntries);
-            if (keyName == null) 
-                throw new AutoKeyException( resourceAdapter.getString(ResourceAdapter.Item.AUTO_KEY_SELECTION_ERROR, new File( outputZipFilename).getName()));
+            if (keyName == null) {
+                String outputName = outputZipFilename == null ? "" : new File( outputZipFilename).getName();
+                throw new AutoKeyException( resourceAdapter.getString(ResourceAdapter.Item.AUTO_KEY_SELECTION_ERROR, outputName));
+            }
             
             autoKeyObservable.notifyObservers(keyName);
 
@@ -671,11 +1007,20 @@ public class ZipSigner
 
         
         ZipOutput zipOutput = null;
+        ZipOutput spool = null;
+        File spoolFile = null;
+        ByteArrayChannel spoolData = null;
+        boolean spoolAppended = false;
+        List<ZioEntry> created = new ArrayList<ZioEntry>();
 
         try {
 
 
             zipOutput = new ZipOutput( outputStream);
+            zipOutput.setAlignmentPolicy( alignmentPolicy);
+            if (writeBehindBuffers > 0) zipOutput.setWriteBehind( writeBehindBuffers);
+            writeBehindStatistics = zipOutput.getWriteBehindStatistics();
+            readAheadStatistics = null;
 
             if (KEY_NONE.equals(keySet.getName())) {
                 progressHelper.setProgressTotalItems(zioEntries.size());
@@ -687,11 +1032,7 @@ public class ZipSigner
             // Calculate total steps to complete for accurate progress percentages.
             int progressTotalItems = 0;
             for (ZioEntry entry: zioEntries.values()) {
-                String name = entry.getName();
-                if (!entry.isDirectory() && !name.equals(JarFile.MANIFEST_NAME) &&
-                        !name.equals(CERT_SF_NAME) && !name.equals(CERT_RSA_NAME) &&
-                        (stripPattern == null ||
-                                !stripPattern.matcher(name).matches()))
+                if (isSignedEntry(entry))
                 {
                     progressTotalItems += 3;  // digest for manifest, digest in sig file, copy data
                 }
@@ -705,9 +1046,24 @@ public class ZipSigner
             
             // MANIFEST.MF
             // progress(ProgressEvent.PRORITY_NORMAL, JarFile.MANIFEST_NAME);
-            Manifest manifest = addDigestsToManifest(zioEntries);
+            Manifest manifest;
+            if (singlePass) {
+                if (spoolInMemory) {
+                    spoolData = new ByteArrayChannel();
+                    spool = new ZipOutput( spoolData);
+                }
+                else {
+                    File outputDir = outputZipFilename == null ? null : new File( outputZipFilename).getAbsoluteFile().getParentFile();
+                    spoolFile = File.createTempFile("zipsigner", ".spool", outputDir);
+                    spool = new ZipOutput( new FileOutputStream( spoolFile));
+                }
+                spool.setAlignmentPolicy( alignmentPolicy);
+                manifest = digestAndSpoolFiles(zioEntries, spool, timestamp);
+            }
+            else manifest = addDigestsToManifest(zioEntries);
             if (canceled) return;
             ZioEntry ze = new ZioEntry( JarFile.MANIFEST_NAME);
+            created.add(ze);
             ze.setTime(timestamp);
             manifest.write(ze.getOutputStream());
             zipOutput.write(ze);
@@ -715,6 +1071,7 @@ public class ZipSigner
 
             // CERT.SF
             ze = new ZioEntry(CERT_SF_NAME);
+            created.add(ze);
             ze.setTime(timestamp);
             
             ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -731,17 +1088,31 @@ public class ZipSigner
             // CERT.RSA
             progressHelper.progress( ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.GENERATING_SIGNATURE_BLOCK));
             ze = new ZioEntry(CERT_RSA_NAME);
+            created.add(ze);
             ze.setTime(timestamp);
+            // The spooled entries were aligned as if written at offset zero, so end the signature files on the same boundary.
+            if (spool != null) ze.setEndAlignment(alignmentPolicy == null ? ZioEntry.STORED_ALIGNMENT : alignmentPolicy.getMaxAlignment());
             writeSignatureBlock(keySet, sfBytes, ze.getOutputStream());
             zipOutput.write( ze);
             if (canceled) return;
 
             // Everything else
-            copyFiles(manifest, zioEntries, zipOutput, timestamp);
+            if (spool != null) {
+                if (spoolData != null) zipOutput.append(spool, spoolData.getSource());
+                else zipOutput.append(spool, spoolFile);
+                spoolAppended = true;
+            }
+            else copyFiles(manifest, zioEntries, zipOutput, timestamp);
             if (canceled) return;
             
         }
         finally {
+            // Free the buffers of the signature files, which are only written once.
+            for (ZioEntry entry : created) entry.release();
+            if (spool != null && !spoolAppended) {
+                try { spool.close(); } catch (Throwable t) {}
+            }
+            if (spoolFile != null) spoolFile.delete();
             zipOutput.close();
             if (canceled) {
                 try {